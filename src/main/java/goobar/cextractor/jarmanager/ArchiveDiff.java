@@ -0,0 +1,182 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Entries which differ between two versions of an archive. Archives are
+ * compared by their central directories: an entry is changed when its size
+ * or CRC-32 differs. Content isn't read unless it's requested (see
+ * {@link #compare(File, File, boolean)}), then content of the entries which
+ * look the same is inflated and compared byte by byte.
+ * <p>
+ * Names of removed entries are listed in their order in the old archive,
+ * names of added and changed entries in their order in the new archive.
+ *
+ * @author goobar
+ */
+public class ArchiveDiff
+{
+
+	private final List<String> added;
+
+	private final List<String> changed;
+
+	private final List<String> removed;
+
+	private ArchiveDiff()
+	{
+		added = new ArrayList<String>();
+		changed = new ArrayList<String>();
+		removed = new ArrayList<String>();
+	}
+
+	/**
+	 * Compares the archives by their central directories only.
+	 *
+	 * @param oldJarFile
+	 *                the old version of the archive
+	 * @param newJarFile
+	 *                the new version of the archive
+	 * @return the differences
+	 * @throws ArchiveReadException
+	 *                 thrown when an archive cannot be read
+	 */
+	public static ArchiveDiff compare(File oldJarFile, File newJarFile)
+		throws ArchiveReadException
+	{
+		return compare(oldJarFile, newJarFile, false);
+	}
+
+	/**
+	 * Compares the archives.
+	 *
+	 * @param oldJarFile
+	 *                the old version of the archive
+	 * @param newJarFile
+	 *                the new version of the archive
+	 * @param compareContent
+	 *                if true content of the entries whose sizes and CRCs
+	 *                are the same is compared too
+	 * @return the differences
+	 * @throws ArchiveReadException
+	 *                 thrown when an archive cannot be read
+	 */
+	public static ArchiveDiff compare(File oldJarFile, File newJarFile,
+		boolean compareContent) throws ArchiveReadException
+	{
+		ArchiveSource oldSource = null;
+		ArchiveSource newSource = null;
+		try
+		{
+			oldSource = ArchiveSource.open(oldJarFile);
+			newSource = ArchiveSource.open(newJarFile);
+			ArchiveDiff diff = new ArchiveDiff();
+			Map<String, ZipEntryRecord> oldRecords = new LinkedHashMap<String, ZipEntryRecord>();
+			for (ZipEntryRecord record : oldSource.records())
+			{
+				oldRecords.put(record.getName(), record);
+			}
+			for (ZipEntryRecord record : newSource.records())
+			{
+				ZipEntryRecord oldRecord = oldRecords
+					.remove(record.getName());
+				if (oldRecord == null)
+				{
+					diff.added.add(record.getName());
+				}
+				else if (!isSameRecord(oldRecord, record)
+					|| compareContent && !isSameContent(oldSource,
+						newSource, record.getName()))
+				{
+					diff.changed.add(record.getName());
+				}
+			}
+			diff.removed.addAll(oldRecords.keySet());
+			return diff;
+		}
+		catch (IOException ex)
+		{
+			throw new ArchiveReadException(String.format(
+				"Cannot compare archives %s and %s. Reason: %s",
+				oldJarFile, newJarFile, ex.toString()), ex);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(oldSource);
+			IOUtils.closeQuietly(newSource);
+		}
+	}
+
+	private static boolean isSameContent(ArchiveSource oldSource,
+		ArchiveSource newSource, String entryName) throws IOException
+	{
+		InputStream oldContent = oldSource.openEntry(entryName);
+		try
+		{
+			InputStream newContent = newSource.openEntry(entryName);
+			try
+			{
+				return IOUtils.contentEquals(oldContent, newContent);
+			}
+			finally
+			{
+				newContent.close();
+			}
+		}
+		finally
+		{
+			oldContent.close();
+		}
+	}
+
+	private static boolean isSameRecord(ZipEntryRecord oldRecord,
+		ZipEntryRecord newRecord)
+	{
+		return oldRecord.getSize() == newRecord.getSize()
+			&& oldRecord.getCrc() == newRecord.getCrc();
+	}
+
+	/**
+	 * @return names of the entries which are only in the new archive
+	 */
+	public List<String> getAdded()
+	{
+		return Collections.unmodifiableList(added);
+	}
+
+	/**
+	 * @return names of the entries which are in both archives, but differ
+	 */
+	public List<String> getChanged()
+	{
+		return Collections.unmodifiableList(changed);
+	}
+
+	/**
+	 * @return names of the entries which are only in the old archive
+	 */
+	public List<String> getRemoved()
+	{
+		return Collections.unmodifiableList(removed);
+	}
+
+	/**
+	 * @return true if the archives contain the same entries
+	 */
+	public boolean isEmpty()
+	{
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+	}
+}
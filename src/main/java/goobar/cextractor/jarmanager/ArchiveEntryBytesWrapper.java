@@ -0,0 +1,285 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.ZipEntry;
+
+/**
+ * {@link BytesWrapper} whose content is read from an archive entry the first
+ * time it's needed. Once read (or set), the content is kept in memory.
+ * <p>
+ * As long as the content isn't changed, it can be copied to another archive
+ * exactly as it's stored in the source archive (compressed), see
+ * {@link #isUnchanged()}.
+ *
+ * @author goobar
+ */
+class ArchiveEntryBytesWrapper extends BytesWrapper
+{
+
+	private final String entryName;
+
+	private boolean loaded;
+
+	private boolean modified;
+
+	private final long originalCrc;
+
+	private final long originalSize;
+
+	private final ArchiveSource source;
+
+	/**
+	 * @param source
+	 *                archive containing the entry
+	 * @param record
+	 *                record of the entry
+	 */
+	ArchiveEntryBytesWrapper(ArchiveSource source, ZipEntryRecord record)
+	{
+		super(null);
+		this.source = source;
+		entryName = record.getName();
+		originalCrc = record.getCrc();
+		originalSize = record.getSize();
+	}
+
+	/**
+	 * Creates wrapper of the same content read from the source, see
+	 * {@link #copy()} and {@link #rebind(ArchiveSource, ZipEntryRecord)}.
+	 */
+	private ArchiveEntryBytesWrapper(ArchiveEntryBytesWrapper content,
+		ArchiveSource source, long originalCrc, long originalSize)
+	{
+		super(null);
+		this.source = source;
+		entryName = content.entryName;
+		this.originalCrc = originalCrc;
+		this.originalSize = originalSize;
+		if (content.loaded)
+		{
+			super.setBytes(content.getBytes());
+			loaded = true;
+		}
+		modified = content.modified;
+	}
+
+	/**
+	 * CRC of content which hasn't been read is taken from the archive.
+	 */
+	@Override
+	public synchronized long crc()
+	{
+		return loaded ? super.crc() : originalCrc;
+	}
+
+	/**
+	 * Returns the content, reading it from the archive if necessary.
+	 *
+	 * @throws IllegalStateException
+	 *                 thrown when the content cannot be read from the
+	 *                 archive
+	 */
+	@Override
+	public synchronized byte[] getBytes()
+	{
+		if (!loaded)
+		{
+			if (originalSize > MAX_ARRAY_LENGTH)
+			{
+				throw new IllegalStateException(String.format(
+					"Entry %s is too large to be read into an array",
+					entryName));
+			}
+			try
+			{
+				load();
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(String.format(
+					"Cannot read entry %s. Reason: %s",
+					entryName, ex.toString()), ex);
+			}
+		}
+		return super.getBytes();
+	}
+
+	@Override
+	public synchronized long length()
+	{
+		return loaded ? super.length() : originalSize;
+	}
+
+	@Override
+	public synchronized InputStream openStream() throws IOException
+	{
+		if (loaded)
+		{
+			return new ByteArrayInputStream(super.getBytes());
+		}
+		return source.openEntry(entryName);
+	}
+
+	@Override
+	public synchronized void setBytes(byte[] bytes)
+	{
+		super.setBytes(bytes);
+		loaded = true;
+		modified = true;
+	}
+
+	/**
+	 * Content which hasn't been read is read from the same archive by the
+	 * copy.
+	 */
+	@Override
+	synchronized BytesWrapper copy()
+	{
+		return new ArchiveEntryBytesWrapper(this, source, originalCrc,
+			originalSize);
+	}
+
+	@Override
+	synchronized boolean isInMemory()
+	{
+		return loaded;
+	}
+
+	/**
+	 * @param source
+	 *                an archive
+	 * @return true if content is read from the archive
+	 */
+	boolean isReadFrom(ArchiveSource source)
+	{
+		return this.source == source;
+	}
+
+	/**
+	 * Checks whether the content is the same as in the source archive,
+	 * i.e. it hasn't been replaced by {@link #setBytes(byte[])}. Content
+	 * isn't read to check it, an array returned by {@link #getBytes()}
+	 * mustn't be modified in place (see {@link BytesWrapper}).
+	 *
+	 * @return true if content is the same as in the source archive
+	 */
+	synchronized boolean isUnchanged()
+	{
+		return !modified;
+	}
+
+	/**
+	 * @param record
+	 *                record of an entry of any archive
+	 * @return true if content is unchanged and it has the same CRC and
+	 *         size as the entry
+	 */
+	synchronized boolean isUnchangedContentOf(ZipEntryRecord record)
+	{
+		return originalCrc == record.getCrc()
+			&& originalSize == record.getSize() && isUnchanged();
+	}
+
+	/**
+	 * Reads the content from the archive unless it's been read already.
+	 * Content too large to be read into an array is left in the archive.
+	 *
+	 * @throws IOException
+	 *                 thrown when the content cannot be read
+	 */
+	synchronized void load() throws IOException
+	{
+		if (!loaded && originalSize <= MAX_ARRAY_LENGTH)
+		{
+			super.setBytes(source.read(entryName));
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Opens content of the entry exactly as it's stored in the source
+	 * archive (compressed). Use only when content is unchanged.
+	 *
+	 * @return stream of the compressed content
+	 * @throws IOException
+	 *                 thrown when content cannot be read
+	 */
+	InputStream openRawStream() throws IOException
+	{
+		return source.openRaw(record());
+	}
+
+	/**
+	 * Creates wrapper of the same content read from another archive, e.g.
+	 * from the new version of the archive file, which contains the entry
+	 * as well.
+	 *
+	 * @param source
+	 *                the other archive
+	 * @param record
+	 *                record of the entry in the other archive
+	 * @return the new wrapper
+	 */
+	synchronized ArchiveEntryBytesWrapper rebind(ArchiveSource source,
+		ZipEntryRecord record)
+	{
+		return new ArchiveEntryBytesWrapper(this, source, record.getCrc(),
+			record.getSize());
+	}
+
+	/**
+	 * @return record of the entry in the source archive
+	 * @throws IOException
+	 *                 thrown when the source archive is closed
+	 */
+	ZipEntryRecord record() throws IOException
+	{
+		return source.record(entryName);
+	}
+
+	/**
+	 * Content of a stored (uncompressed) entry which hasn't been read is
+	 * transferred straight from the source archive, without copying it to
+	 * the heap.
+	 */
+	@Override
+	synchronized void transferTo(FileChannel channel) throws IOException
+	{
+		if (loaded)
+		{
+			super.transferTo(channel);
+			return;
+		}
+		ZipEntryRecord record = record();
+		if (record.getMethod() == ZipEntry.STORED)
+		{
+			source.transferRaw(record, channel);
+		}
+		else
+		{
+			source.copy(entryName, Channels.newOutputStream(channel));
+		}
+	}
+
+	@Override
+	synchronized void writeTo(OutputStream os) throws IOException
+	{
+		if (loaded)
+		{
+			super.writeTo(os);
+		}
+		else
+		{
+			source.copy(entryName, os);
+		}
+	}
+}
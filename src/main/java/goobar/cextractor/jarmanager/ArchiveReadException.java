@@ -32,4 +32,18 @@ public class ArchiveReadException extends Exception
 	{
 		super(msg);
 	}
+
+	/**
+	 * Constructs an instance of <code>ArchiveReadException</code> with the
+	 * specified detail message and cause.
+	 *
+	 * @param msg
+	 *                the detail message.
+	 * @param cause
+	 *                the cause.
+	 */
+	public ArchiveReadException(String msg, Throwable cause)
+	{
+		super(msg, cause);
+	}
 }
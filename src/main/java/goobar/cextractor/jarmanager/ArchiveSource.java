@@ -0,0 +1,613 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Archive opened for reading. Only the central directory is read when the
+ * archive is opened, content of the entries is read on demand - either
+ * inflated or as it's stored in the archive (compressed).
+ * <p>
+ * The archive is read directly from the file (see {@link #open(File)}). A
+ * source can be closed and opened again, so the file can be replaced by a new
+ * version containing the same entries, or resumed when the file hasn't changed
+ * (see {@link #resume()}).
+ * <p>
+ * A source can be shared by several managers, e.g. by an archive and its
+ * snapshots (see {@link #retain()}). The file is closed when each of them
+ * has released it (see {@link #release()}).
+ *
+ * @author goobar
+ */
+class ArchiveSource implements Closeable
+{
+
+	private static final int END_MAXLEN = 0xFFFF + ZipFormat.ENDHDR;
+
+	private long centralDirectoryOffset;
+
+	private FileChannel channel;
+
+	private final File file;
+
+	private final Map<String, ZipEntryRecord> records;
+
+	/**
+	 * Number of managers sharing the source.
+	 */
+	private int references;
+
+	private ArchiveSource(File file)
+	{
+		this.file = file;
+		records = new LinkedHashMap<String, ZipEntryRecord>();
+		references = 1;
+	}
+
+	/**
+	 * Opens the archive file. Content is read from the file when it's
+	 * needed, so the file stays opened until the source is closed.
+	 *
+	 * @param file
+	 *                the archive file
+	 * @return the source
+	 * @throws IOException
+	 *                 thrown when archive cannot be opened
+	 */
+	static ArchiveSource open(File file) throws IOException
+	{
+		ArchiveSource source = new ArchiveSource(file);
+		source.open();
+		return source;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return offset of the central directory, i.e. the end of entries data
+	 * @throws IOException
+	 *                 thrown when archive is closed
+	 */
+	synchronized long centralDirectoryOffset() throws IOException
+	{
+		openedChannel();
+		return centralDirectoryOffset;
+	}
+
+	/**
+	 * @param entryName
+	 *                name of an entry
+	 * @return true if the archive contains the entry
+	 * @throws IOException
+	 *                 thrown when archive is closed
+	 */
+	synchronized boolean contains(String entryName) throws IOException
+	{
+		openedChannel();
+		return records.containsKey(entryName);
+	}
+
+	/**
+	 * Copies (inflated) content of the entry to the stream without keeping
+	 * it in memory.
+	 *
+	 * @param entryName
+	 *                name of the entry
+	 * @param os
+	 *                the target stream
+	 * @throws IOException
+	 *                 thrown when the entry cannot be read
+	 */
+	void copy(String entryName, OutputStream os) throws IOException
+	{
+		InputStream is = openEntry(entryName);
+		try
+		{
+			IOUtils.copyLarge(is, os);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * @return the archive file
+	 */
+	File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return true if the source is shared by several managers
+	 */
+	synchronized boolean isShared()
+	{
+		return references > 1;
+	}
+
+	/**
+	 * Opens the archive file and reads its central directory. Does nothing
+	 * if it's already opened.
+	 *
+	 * @throws IOException
+	 *                 thrown when archive cannot be opened
+	 */
+	synchronized void open() throws IOException
+	{
+		if (channel != null)
+		{
+			return;
+		}
+		channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ);
+		try
+		{
+			readCentralDirectory();
+		}
+		catch (IOException ex)
+		{
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens inflated content of the entry.
+	 *
+	 * @param entryName
+	 *                name of the entry
+	 * @return stream of the content
+	 * @throws IOException
+	 *                 thrown when the entry cannot be read
+	 */
+	InputStream openEntry(String entryName) throws IOException
+	{
+		ZipEntryRecord record = record(entryName);
+		InputStream raw = openRaw(record);
+		switch (record.getMethod())
+		{
+		case ZipEntry.STORED:
+			return raw;
+		case ZipEntry.DEFLATED:
+			return new InflatingInputStream(raw);
+		default:
+			raw.close();
+			throw new ZipException(String.format(
+				"Entry %s uses unsupported compression method %d",
+				entryName, record.getMethod()));
+		}
+	}
+
+	/**
+	 * Opens content of the entry exactly as it's stored in the archive
+	 * (compressed).
+	 *
+	 * @param record
+	 *                record of the entry
+	 * @return stream of the compressed content
+	 * @throws IOException
+	 *                 thrown when the entry cannot be read
+	 */
+	InputStream openRaw(ZipEntryRecord record) throws IOException
+	{
+		long offset = dataOffset(record);
+		return new FileRegionInputStream(openedChannel(), offset,
+			record.getCompressedSize(), false);
+	}
+
+	/**
+	 * Reads (inflates) content of the entry.
+	 *
+	 * @param entryName
+	 *                name of the entry
+	 * @return content of the entry
+	 * @throws IOException
+	 *                 thrown when the entry cannot be read
+	 */
+	byte[] read(String entryName) throws IOException
+	{
+		InputStream is = openEntry(entryName);
+		try
+		{
+			return IOUtils.toByteArray(is);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Returns record of the entry from the central directory.
+	 *
+	 * @param entryName
+	 *                name of the entry
+	 * @return the record
+	 * @throws IOException
+	 *                 thrown when entry doesn't exist or archive is
+	 *                 closed
+	 */
+	synchronized ZipEntryRecord record(String entryName)
+		throws IOException
+	{
+		openedChannel();
+		ZipEntryRecord record = records.get(entryName);
+		if (record == null)
+		{
+			throw new IOException(String.format(
+				"Entry %s doesn't exist in archive %s",
+				entryName, file));
+		}
+		return record;
+	}
+
+	/**
+	 * @return records of all entries in central directory order
+	 * @throws IOException
+	 *                 thrown when archive is closed
+	 */
+	synchronized List<ZipEntryRecord> records() throws IOException
+	{
+		openedChannel();
+		return new ArrayList<ZipEntryRecord>(records.values());
+	}
+
+	/**
+	 * Releases the source shared by a manager, closing the file when no
+	 * other manager shares it.
+	 *
+	 * @throws IOException
+	 *                 thrown when archive cannot be closed
+	 */
+	synchronized void release() throws IOException
+	{
+		if (references > 0 && --references == 0)
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Opens the archive file again after the source has been closed,
+	 * without reading its central directory again. Use only when the file
+	 * hasn't changed since it was opened. Does nothing if it's already
+	 * opened.
+	 *
+	 * @throws IOException
+	 *                 thrown when archive cannot be opened
+	 */
+	synchronized void resume() throws IOException
+	{
+		if (channel != null)
+		{
+			return;
+		}
+		channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ);
+	}
+
+	/**
+	 * Shares the source with another manager, which releases it when it
+	 * doesn't need it any more.
+	 *
+	 * @return this source
+	 */
+	synchronized ArchiveSource retain()
+	{
+		references++;
+		return this;
+	}
+
+	/**
+	 * Transfers content of the entry exactly as it's stored in the archive
+	 * to the channel. Content of the archive file is transferred with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so it
+	 * doesn't have to be copied to the heap.
+	 *
+	 * @param record
+	 *                record of the entry
+	 * @param target
+	 *                the target channel
+	 * @throws IOException
+	 *                 thrown when the entry cannot be transferred
+	 */
+	void transferRaw(ZipEntryRecord record, WritableByteChannel target)
+		throws IOException
+	{
+		long offset = dataOffset(record);
+		long length = record.getCompressedSize();
+		FileChannel source = openedChannel();
+		long transferred = 0;
+		while (transferred < length)
+		{
+			long count = source.transferTo(offset + transferred,
+				length - transferred, target);
+			if (count <= 0 && offset + transferred >= source.size())
+			{
+				throw new EOFException(String.format(
+					"Unexpected end of archive %s", file));
+			}
+			transferred += count;
+		}
+	}
+
+	private long dataOffset(ZipEntryRecord record) throws IOException
+	{
+		synchronized (record)
+		{
+			if (record.getDataOffset() < 0)
+			{
+				ByteBuffer header = read(
+					record.getLocalHeaderOffset(),
+					ZipFormat.LOCHDR);
+				if (header.getInt(0) != ZipFormat.LOCSIG)
+				{
+					throw new ZipException(String.format(
+						"Invalid local header of entry %s",
+						record.getName()));
+				}
+				record.setDataOffset(record
+					.getLocalHeaderOffset()
+					+ ZipFormat.LOCHDR
+					+ (header.getShort(26) & 0xFFFF)
+					+ (header.getShort(28) & 0xFFFF));
+			}
+			return record.getDataOffset();
+		}
+	}
+
+	private long length() throws IOException
+	{
+		return channel.size();
+	}
+
+	private FileChannel openedChannel() throws IOException
+	{
+		if (channel == null)
+		{
+			throw new IOException(String.format(
+				"Archive %s is closed", file));
+		}
+		return channel;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new EOFException(String.format(
+					"Unexpected end of archive %s", file));
+			}
+		}
+		buffer.flip();
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void readCentralDirectory() throws IOException
+	{
+		records.clear();
+		long length = length();
+		int tailLength = (int) Math.min(length, END_MAXLEN);
+		ByteBuffer tail = read(length - tailLength, tailLength);
+		int end = -1;
+		for (int i = tailLength - ZipFormat.ENDHDR; i >= 0; i--)
+		{
+			if (tail.getInt(i) == ZipFormat.ENDSIG)
+			{
+				end = i;
+				break;
+			}
+		}
+		if (end < 0)
+		{
+			throw new ZipException(String.format(
+				"Archive %s has no central directory", file));
+		}
+		long count = tail.getShort(end + 10) & 0xFFFF;
+		long cenSize = tail.getInt(end + 12) & ZipFormat.ZIP64_MAGICVAL;
+		long cenOffset = tail.getInt(end + 16)
+			& ZipFormat.ZIP64_MAGICVAL;
+		int locator = end - ZipFormat.ZIP64_LOCHDR;
+		if ((count == ZipFormat.ZIP64_MAGICCOUNT
+			|| cenSize == ZipFormat.ZIP64_MAGICVAL
+			|| cenOffset == ZipFormat.ZIP64_MAGICVAL)
+			&& locator >= 0
+			&& tail.getInt(locator) == ZipFormat.ZIP64_LOCSIG)
+		{
+			ByteBuffer zip64End = read(tail.getLong(locator + 8),
+				ZipFormat.ZIP64_ENDHDR);
+			if (zip64End.getInt(0) != ZipFormat.ZIP64_ENDSIG)
+			{
+				throw new ZipException(String.format(
+					"Invalid ZIP64 end header in archive %s",
+					file));
+			}
+			count = zip64End.getLong(32);
+			cenSize = zip64End.getLong(40);
+			cenOffset = zip64End.getLong(48);
+		}
+		if (cenSize > Integer.MAX_VALUE)
+		{
+			throw new ZipException(String.format(
+				"Central directory of archive %s is too large",
+				file));
+		}
+		ByteBuffer cen = read(cenOffset, (int) cenSize);
+		centralDirectoryOffset = cenOffset;
+		int position = 0;
+		for (long i = 0; i < count; i++)
+		{
+			ZipEntryRecord record = readRecord(cen, position);
+			records.put(record.getName(), record);
+			position += ZipFormat.CENHDR
+				+ (cen.getShort(position + 28) & 0xFFFF)
+				+ (cen.getShort(position + 30) & 0xFFFF)
+				+ (cen.getShort(position + 32) & 0xFFFF);
+		}
+	}
+
+	private ZipEntryRecord readRecord(ByteBuffer cen, int position)
+		throws ZipException
+	{
+		if (cen.getInt(position) != ZipFormat.CENSIG)
+		{
+			throw new ZipException(String.format(
+				"Invalid central directory of archive %s",
+				file));
+		}
+		int flags = cen.getShort(position + 8) & 0xFFFF;
+		int method = cen.getShort(position + 10) & 0xFFFF;
+		long dosTime = cen.getInt(position + 12)
+			& ZipFormat.ZIP64_MAGICVAL;
+		long crc = cen.getInt(position + 16) & ZipFormat.ZIP64_MAGICVAL;
+		long compressedSize = cen.getInt(position + 20)
+			& ZipFormat.ZIP64_MAGICVAL;
+		long size = cen.getInt(position + 24) & ZipFormat.ZIP64_MAGICVAL;
+		int nameLength = cen.getShort(position + 28) & 0xFFFF;
+		int extraLength = cen.getShort(position + 30) & 0xFFFF;
+		int commentLength = cen.getShort(position + 32) & 0xFFFF;
+		long localHeaderOffset = cen.getInt(position + 42)
+			& ZipFormat.ZIP64_MAGICVAL;
+		int offset = position + ZipFormat.CENHDR;
+		String name = string(cen, offset, nameLength);
+		offset += nameLength;
+		byte[] extra = null;
+		if (extraLength > 0)
+		{
+			extra = new byte[extraLength];
+			for (int i = 0; i < extraLength; i++)
+			{
+				extra[i] = cen.get(offset + i);
+			}
+			// ZIP64 extended information, values are present only
+			// when the regular ones don't fit
+			int extraOffset = offset;
+			while (extraOffset + 4 <= offset + extraLength)
+			{
+				int id = cen.getShort(extraOffset) & 0xFFFF;
+				int dataLength = cen.getShort(extraOffset + 2)
+					& 0xFFFF;
+				int data = extraOffset + 4;
+				if (id == ZipFormat.EXTID_ZIP64)
+				{
+					if (size == ZipFormat.ZIP64_MAGICVAL)
+					{
+						size = cen.getLong(data);
+						data += 8;
+					}
+					if (compressedSize == ZipFormat.ZIP64_MAGICVAL)
+					{
+						compressedSize = cen
+							.getLong(data);
+						data += 8;
+					}
+					if (localHeaderOffset == ZipFormat.ZIP64_MAGICVAL)
+					{
+						localHeaderOffset = cen
+							.getLong(data);
+					}
+					break;
+				}
+				extraOffset = data + dataLength;
+			}
+		}
+		offset += extraLength;
+		String comment = commentLength > 0
+			? string(cen, offset, commentLength) : null;
+		return new ZipEntryRecord(name, method, flags, dosTime, crc,
+			compressedSize, size, localHeaderOffset, extra,
+			comment);
+	}
+
+	private String string(ByteBuffer buffer, int offset, int length)
+	{
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, ZipFormat.UTF8);
+	}
+
+	/**
+	 * Inflates raw deflated content, releases the inflater when closed.
+	 */
+	private static class InflatingInputStream extends InflaterInputStream
+	{
+
+		private boolean eof;
+
+		public InflatingInputStream(InputStream raw)
+		{
+			super(raw, new Inflater(true), 8192);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				inf.end();
+			}
+		}
+
+		@Override
+		protected void fill() throws IOException
+		{
+			if (eof)
+			{
+				throw new EOFException(
+					"Unexpected end of ZLIB input stream");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1)
+			{
+				// inflater in nowrap mode may need an extra
+				// dummy byte
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,216 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link BytesWrapper} backed by a {@link ByteBuffer}, e.g. a direct buffer
+ * or a memory-mapped file region. The content stays in the buffer (outside of
+ * the heap for direct and mapped buffers) when archive is saved or extracted.
+ * {@link #getBytes()} returns a copy of the content, so modifying the returned
+ * array doesn't modify the content. Use {@link #setBytes(byte[])} to replace
+ * the content with an array.
+ *
+ * @author goobar
+ */
+public class ByteBufferBytesWrapper extends BytesWrapper
+{
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates wrapper of the content between position and limit of the
+	 * buffer. The buffer itself isn't modified.
+	 *
+	 * @param buffer
+	 *                the buffer
+	 */
+	public ByteBufferBytesWrapper(ByteBuffer buffer)
+	{
+		super(null);
+		this.buffer = buffer.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Maps the whole file into memory.
+	 *
+	 * @param file
+	 *                the file to map
+	 * @return wrapper of the mapped file
+	 * @throws IOException
+	 *                 thrown when file cannot be mapped
+	 */
+	public static ByteBufferBytesWrapper map(File file) throws IOException
+	{
+		return map(file, 0, file.length());
+	}
+
+	/**
+	 * Maps a region of the file into memory.
+	 *
+	 * @param file
+	 *                the file to map
+	 * @param offset
+	 *                start of the region
+	 * @param length
+	 *                length of the region (at most 2 GB, use
+	 *                {@link FileRegionBytesWrapper} for larger regions)
+	 * @return wrapper of the mapped region
+	 * @throws IOException
+	 *                 thrown when file cannot be mapped
+	 */
+	public static ByteBufferBytesWrapper map(File file, long offset,
+		long length) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ);
+		try
+		{
+			return new ByteBufferBytesWrapper(
+				channel.map(MapMode.READ_ONLY, offset, length));
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return read-only view of the buffer, or null if content has been
+	 *         replaced by {@link #setBytes(byte[])}
+	 */
+	public synchronized ByteBuffer getBuffer()
+	{
+		return buffer != null ? buffer.duplicate() : null;
+	}
+
+	/**
+	 * @return copy of the content
+	 */
+	@Override
+	public synchronized byte[] getBytes()
+	{
+		if (buffer == null)
+		{
+			return super.getBytes();
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public synchronized long length()
+	{
+		return buffer != null ? buffer.remaining() : super.length();
+	}
+
+	@Override
+	public synchronized InputStream openStream() throws IOException
+	{
+		if (buffer == null)
+		{
+			return super.openStream();
+		}
+		final ByteBuffer content = buffer.duplicate();
+		return new InputStream()
+		{
+			@Override
+			public int available()
+			{
+				return content.remaining();
+			}
+
+			@Override
+			public int read()
+			{
+				return content.hasRemaining()
+					? content.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len)
+			{
+				if (!content.hasRemaining())
+				{
+					return -1;
+				}
+				int read = Math.min(len, content.remaining());
+				content.get(b, off, read);
+				return read;
+			}
+		};
+	}
+
+	@Override
+	public synchronized void setBytes(byte[] bytes)
+	{
+		buffer = null;
+		super.setBytes(bytes);
+	}
+
+	@Override
+	synchronized BytesWrapper copy()
+	{
+		if (buffer != null)
+		{
+			return new ByteBufferBytesWrapper(buffer);
+		}
+		ByteBufferBytesWrapper copy = new ByteBufferBytesWrapper(
+			ByteBuffer.allocate(0));
+		copy.setBytes(super.getBytes());
+		return copy;
+	}
+
+	@Override
+	synchronized boolean isInMemory()
+	{
+		return buffer == null;
+	}
+
+	@Override
+	synchronized void transferTo(FileChannel channel) throws IOException
+	{
+		if (buffer == null)
+		{
+			super.transferTo(channel);
+			return;
+		}
+		ByteBuffer content = buffer.duplicate();
+		while (content.hasRemaining())
+		{
+			channel.write(content);
+		}
+	}
+
+	@Override
+	synchronized void writeTo(OutputStream os) throws IOException
+	{
+		if (buffer == null)
+		{
+			super.writeTo(os);
+			return;
+		}
+		ByteBuffer content = buffer.duplicate();
+		byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE,
+			content.remaining())];
+		while (content.hasRemaining())
+		{
+			int length = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, length);
+			os.write(chunk, 0, length);
+		}
+	}
+}
@@ -4,11 +4,36 @@
  */
 package goobar.cextractor.jarmanager;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 
 /**
  * Just a very simple wrapper for bytes array. Useful when you want to place it
  * in some kind of Collection or something like that.
+ * <p>
+ * Subclasses can keep the content elsewhere, e.g. outside of the heap (see
+ * {@link ByteBufferBytesWrapper}) or in a file (see
+ * {@link FileRegionBytesWrapper}). Such content is read into an array only
+ * when {@link #getBytes()} is called, so it's never called when an archive is
+ * saved or extracted.
+ * <p>
+ * Content added to a {@link VirtualJarManager} with a memory budget can be
+ * spilled to disk and read back by the next {@link #getBytes()}. Don't keep
+ * the returned array for long then: once the content is spilled, changes to
+ * that array are lost.
+ * <p>
+ * Hash code and CRC-32 of the content are calculated once and kept until the
+ * content is replaced by {@link #setBytes(byte[])}, so an array of content
+ * mustn't be modified in place. Length of the content is known without
+ * reading it (except for content read from a {@link ContentSupplier}).
  *
  * @author goobar
  */
@@ -16,13 +41,58 @@ import java.util.Arrays;
 public class BytesWrapper
 {
 
+	/**
+	 * Maximum length of content which can be returned as an array.
+	 */
+	static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Value of {@link #crc} when it hasn't been calculated yet.
+	 */
+	private static final long UNKNOWN_CRC = -1;
+
 	private byte[] bytes;
 
+	private long crc = UNKNOWN_CRC;
+
+	private Integer hash;
+
+	private volatile SpillStore.Slot spillSlot;
+
 	public BytesWrapper(byte[] bytes)
 	{
 		this.bytes = bytes;
 	}
 
+	/**
+	 * Returns CRC-32 of the content. It's calculated the first time it's
+	 * needed, content which isn't kept on the heap is streamed.
+	 *
+	 * @return CRC-32 of the content
+	 * @throws IllegalStateException
+	 *                 thrown when the content cannot be read
+	 */
+	public synchronized long crc()
+	{
+		if (crc == UNKNOWN_CRC)
+		{
+			CRC32 checksum = new CRC32();
+			try
+			{
+				writeTo(new CheckedOutputStream(
+					new NullOutputStream(), checksum));
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(String.format(
+					"Cannot read content. Reason: %s",
+					ex.toString()), ex);
+			}
+			crc = checksum.getValue();
+		}
+		return crc;
+	}
+
 	@Override
 	public boolean equals(Object obj)
 	{
@@ -30,12 +100,16 @@ public class BytesWrapper
 		{
 			return false;
 		}
-		if (getClass() != obj.getClass())
+		if (!(obj instanceof BytesWrapper))
 		{
 			return false;
 		}
 		final BytesWrapper other = (BytesWrapper) obj;
-		if (!Arrays.equals(bytes, other.bytes))
+		if (length() != other.length() || hashCode() != other.hashCode())
+		{
+			return false;
+		}
+		if (!Arrays.equals(getBytes(), other.getBytes()))
 		{
 			return false;
 		}
@@ -47,23 +121,147 @@ public class BytesWrapper
 	 */
 	public byte[] getBytes()
 	{
-		return bytes;
+		SpillStore.Slot slot = spillSlot;
+		return slot != null ? slot.getBytes() : bytes;
 	}
 
+	/**
+	 * The hash code is calculated the first time it's needed.
+	 */
 	@Override
-	public int hashCode()
+	public synchronized int hashCode()
 	{
-		int hash = 3;
-		hash = 97 * hash + Arrays.hashCode(bytes);
+		if (hash == null)
+		{
+			hash = 97 * 3 + Arrays.hashCode(getBytes());
+		}
 		return hash;
 	}
 
+	/**
+	 * @return length of the content in bytes
+	 */
+	public long length()
+	{
+		SpillStore.Slot slot = spillSlot;
+		if (slot != null)
+		{
+			return slot.length();
+		}
+		byte[] content = getBytes();
+		return content != null ? content.length : 0;
+	}
+
+	/**
+	 * Opens the content as a stream. Content which isn't kept on the heap
+	 * is read as the stream is read, without reading all of it into an
+	 * array.
+	 *
+	 * @return stream of the content
+	 * @throws IOException
+	 *                 thrown when content cannot be read
+	 */
+	public InputStream openStream() throws IOException
+	{
+		return new ByteArrayInputStream(getBytes());
+	}
+
 	/**
 	 * @param bytes
 	 *                the bytes to set
 	 */
-	public void setBytes(byte[] bytes)
+	public synchronized void setBytes(byte[] bytes)
 	{
-		this.bytes = bytes;
+		SpillStore.Slot slot = spillSlot;
+		if (slot != null)
+		{
+			slot.setBytes(bytes);
+		}
+		else
+		{
+			this.bytes = bytes;
+		}
+		crc = UNKNOWN_CRC;
+		hash = null;
+	}
+
+	/**
+	 * Creates a wrapper of the same content which can be changed
+	 * independently of this one, e.g. when an entry shared with a
+	 * snapshot of an archive is modified. Content kept elsewhere (see
+	 * subclasses) isn't read, the copy refers to it as well. Arrays aren't
+	 * copied, as they mustn't be modified in place.
+	 *
+	 * @return the copy
+	 */
+	synchronized BytesWrapper copy()
+	{
+		BytesWrapper copy = new BytesWrapper(getBytes());
+		copy.crc = crc;
+		copy.hash = hash;
+		return copy;
+	}
+
+	/**
+	 * @return state of the content managed by a {@link SpillStore}, or null
+	 *         if the content isn't managed
+	 */
+	SpillStore.Slot getSpillSlot()
+	{
+		return spillSlot;
+	}
+
+	/**
+	 * @return true if the content is kept in an array on the heap, false
+	 *         if it's read from elsewhere (e.g. it's been spilled)
+	 */
+	boolean isInMemory()
+	{
+		SpillStore.Slot slot = spillSlot;
+		return slot == null || slot.residentBytes() != null;
+	}
+
+	/**
+	 * Hands the content over to a {@link SpillStore}. From now on the
+	 * content is kept by the slot.
+	 */
+	void setSpillSlot(SpillStore.Slot slot)
+	{
+		spillSlot = slot;
+		bytes = null;
+	}
+
+	/**
+	 * Writes the content to the given file channel.
+	 *
+	 * @param channel
+	 *                the target channel
+	 * @throws IOException
+	 *                 thrown when content cannot be written
+	 */
+	void transferTo(FileChannel channel) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(getBytes());
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes the content to the given stream.
+	 *
+	 * @param os
+	 *                the target stream
+	 * @throws IOException
+	 *                 thrown when content cannot be written
+	 */
+	void writeTo(OutputStream os) throws IOException
+	{
+		byte[] content = getBytes();
+		if (content != null)
+		{
+			os.write(content);
+		}
 	}
 }
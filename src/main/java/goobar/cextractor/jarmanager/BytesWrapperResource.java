@@ -0,0 +1,74 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import aQute.lib.osgi.Resource;
+
+/**
+ * bnd {@link Resource} backed by content of a virtual archive entry. Allows
+ * to analyze the archive without writing it to disk first. Content is
+ * accessed only when bnd reads the resource.
+ *
+ * @author goobar
+ */
+class BytesWrapperResource implements Resource
+{
+
+	private final BytesWrapper bytes;
+
+	private String extra;
+
+	private final long lastModified;
+
+	/**
+	 * @param bytes
+	 *                content of the resource
+	 * @param lastModified
+	 *                modification time of the resource
+	 */
+	BytesWrapperResource(BytesWrapper bytes, long lastModified)
+	{
+		this.bytes = bytes;
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public String getExtra()
+	{
+		return extra;
+	}
+
+	@Override
+	public long lastModified()
+	{
+		return lastModified;
+	}
+
+	@Override
+	public InputStream openInputStream() throws Exception
+	{
+		return bytes.openStream();
+	}
+
+	@Override
+	public void setExtra(String extra)
+	{
+		this.extra = extra;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BytesWrapperResource";
+	}
+
+	@Override
+	public void write(OutputStream os) throws Exception
+	{
+		bytes.writeTo(os);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.zip.ZipEntry;
+import goobar.cextractor.jarmanager.ZipArchiveWriter.CompressedContent;
+
+/**
+ * Compresses identical content of several entries only once while an
+ * archive is being saved. Entries to be written are counted up front, so
+ * only content used by more than one entry is cached and it's dropped as
+ * soon as the last entry using it has got it. Content compressed with
+ * different levels (see {@link CompressionPolicy}) isn't shared. The policy
+ * is asked only once for each entry, when the cache is created, and the
+ * level is kept for the entries whose content isn't shared too (see
+ * {@link #compressionLevel(JarEntry)}).
+ *
+ * @author goobar
+ */
+class CompressionCache
+{
+
+	private final Map<Entry<BytesWrapper, Integer>, Future<CompressedContent>> compressions;
+
+	/**
+	 * Compression levels of entries whose content is cached.
+	 */
+	private final Map<JarEntry, Integer> levels;
+
+	private final Map<Entry<BytesWrapper, Integer>, Integer> uses;
+
+	/**
+	 * @param entries
+	 *                entries which will be written
+	 * @param policy
+	 *                compression policy, may be null
+	 */
+	CompressionCache(List<Entry<JarEntry, BytesWrapper>> entries,
+		CompressionPolicy policy)
+	{
+		compressions = new HashMap<Entry<BytesWrapper, Integer>, Future<CompressedContent>>();
+		levels = new IdentityHashMap<JarEntry, Integer>();
+		uses = new HashMap<Entry<BytesWrapper, Integer>, Integer>();
+		for (Entry<JarEntry, BytesWrapper> entry : entries)
+		{
+			if (isCacheable(entry.getKey(), entry.getValue()))
+			{
+				levels.put(entry.getKey(), ZipArchiveWriter
+					.compressionLevel(entry.getKey(),
+						entry.getValue(), policy));
+				Entry<BytesWrapper, Integer> key = key(
+					entry.getKey(), entry.getValue());
+				Integer count = uses.get(key);
+				uses.put(key, count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns compression of the entry's content, shared with the other
+	 * entries with identical content. The content is compressed (using the
+	 * executor if it's given) when it's needed for the first time. Has to
+	 * be called once for each entry, in any order.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry
+	 * @param executor
+	 *                executor compressing the content, or null to
+	 *                compress it in the calling thread
+	 * @return the compression, or null if the content isn't shared
+	 */
+	Future<CompressedContent> compress(final JarEntry entry,
+		final BytesWrapper content, ExecutorService executor)
+	{
+		final Entry<BytesWrapper, Integer> key = isCacheable(entry,
+			content) ? key(entry, content) : null;
+		Integer count = key != null ? uses.get(key) : null;
+		if (count == null || count < 2 && !compressions.containsKey(key))
+		{
+			return null;
+		}
+		Future<CompressedContent> compression = compressions.get(key);
+		if (compression == null)
+		{
+			FutureTask<CompressedContent> task = new FutureTask<CompressedContent>(
+				new Callable<CompressedContent>()
+				{
+					@Override
+					public CompressedContent call()
+					{
+						return ZipArchiveWriter.compress(
+							entry, content,
+							key.getValue());
+					}
+				});
+			if (executor != null)
+			{
+				executor.execute(task);
+			}
+			else
+			{
+				task.run();
+			}
+			compression = task;
+			compressions.put(key, compression);
+		}
+		if (count == 1)
+		{
+			uses.remove(key);
+			compressions.remove(key);
+		}
+		else
+		{
+			uses.put(key, count - 1);
+		}
+		return compression;
+	}
+
+	/**
+	 * @param entry
+	 *                an entry which will be written
+	 * @return level chosen for the entry's content when the cache was
+	 *         created, or null if its content isn't compressed by the
+	 *         cache
+	 */
+	Integer compressionLevel(JarEntry entry)
+	{
+		return levels.get(entry);
+	}
+
+	/**
+	 * @return true for content kept on the heap which is compressed (not
+	 *         stored or copied as it is). Content isn't read to check it,
+	 *         so content which isn't on the heap stays where it is.
+	 */
+	private boolean isCacheable(JarEntry entry, BytesWrapper content)
+	{
+		return content != null && !entry.isDirectory()
+			&& entry.getMethod() != ZipEntry.STORED
+			&& content.isInMemory() && content.length() > 0
+			&& !(content instanceof ArchiveEntryBytesWrapper
+				&& ((ArchiveEntryBytesWrapper) content)
+					.isUnchanged());
+	}
+
+	/**
+	 * @return key of cacheable content compressed with the entry's level,
+	 *         equal for identical content compressed with the same level
+	 */
+	private Entry<BytesWrapper, Integer> key(JarEntry entry,
+		BytesWrapper content)
+	{
+		return new SimpleEntry<BytesWrapper, Integer>(content,
+			levels.get(entry));
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.jar.JarEntry;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how content of an entry is compressed when an archive is saved. The
+ * policy is asked only for entries whose content is compressed (content of an
+ * unchanged entry of an existing archive is copied as it is) and whose method
+ * isn't {@link java.util.zip.ZipEntry#STORED}. It can be called from several
+ * threads at once.
+ *
+ * @author goobar
+ * @see FileJarManager#setCompressionPolicy(CompressionPolicy)
+ */
+public interface CompressionPolicy
+{
+
+	/**
+	 * Level meaning that content is stored without compression.
+	 */
+	public static final int STORE = -2;
+
+	/**
+	 * Returns compression level of the entry's content.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry
+	 * @return {@link #STORE} to store the content, or a {@link Deflater}
+	 *         level ({@link Deflater#DEFAULT_COMPRESSION} or 0-9) to
+	 *         deflate it
+	 */
+	public int compressionLevel(JarEntry entry, BytesWrapper content);
+}
@@ -0,0 +1,177 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+
+/**
+ * Thread safe {@link EntryStore} based on {@link ConcurrentSkipListMap}, so
+ * entries can be added, found and removed by several threads at once without
+ * a global lock. The map is sorted by the names. Each entry gets a sequence
+ * number when it's stored; a snapshot of the entries is sorted by them to
+ * keep insertion order.
+ * <p>
+ * A snapshot of the store (see {@link #snapshot()}) copies the map, so it
+ * takes time linear in the number of entries.
+ *
+ * @author goobar
+ */
+class ConcurrentEntryStore implements EntryStore
+{
+
+	private final ConcurrentNavigableMap<String, SequencedEntry> entries;
+
+	private final AtomicLong sequence;
+
+	ConcurrentEntryStore()
+	{
+		entries = new ConcurrentSkipListMap<String, SequencedEntry>();
+		sequence = new AtomicLong();
+	}
+
+	private ConcurrentEntryStore(
+		ConcurrentNavigableMap<String, SequencedEntry> entries,
+		long sequence)
+	{
+		this.entries = entries;
+		this.sequence = new AtomicLong(sequence);
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> children(
+		String directoryName)
+	{
+		return unwrap(JarManagerUtils.children(entries, directoryName));
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> entries()
+	{
+		SequencedEntry[] sequenced = entries.values().toArray(
+			new SequencedEntry[0]);
+		Arrays.sort(sequenced, new Comparator<SequencedEntry>()
+		{
+			@Override
+			public int compare(SequencedEntry first,
+				SequencedEntry second)
+			{
+				return first.sequence < second.sequence ? -1
+					: first.sequence > second.sequence ? 1 : 0;
+			}
+		});
+		return unwrap(Arrays.asList(sequenced));
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> get(String name)
+	{
+		SequencedEntry stored = entries.get(name);
+		return stored != null ? stored.entry : null;
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> putIfAbsent(
+		Entry<JarEntry, BytesWrapper> entry)
+	{
+		SequencedEntry stored = entries.putIfAbsent(
+			entry.getKey().getName(), new SequencedEntry(
+				sequence.getAndIncrement(), entry));
+		return stored != null ? stored.entry : null;
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> remove(JarEntry entry)
+	{
+		SequencedEntry stored = entries.get(entry.getName());
+		if (stored == null || stored.entry.getKey() != entry
+			|| !entries.remove(entry.getName(), stored))
+		{
+			return null;
+		}
+		return stored.entry;
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> remove(String name)
+	{
+		SequencedEntry stored = entries.remove(name);
+		return stored != null ? stored.entry : null;
+	}
+
+	@Override
+	public boolean replace(Entry<JarEntry, BytesWrapper> stored,
+		Entry<JarEntry, BytesWrapper> entry)
+	{
+		String name = stored.getKey().getName();
+		SequencedEntry current = entries.get(name);
+		return current != null && current.entry == stored
+			&& entries.replace(name, current,
+				new SequencedEntry(current.sequence, entry));
+	}
+
+	@Override
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Entries added or removed by other threads meanwhile may or may not
+	 * be seen by the snapshot.
+	 */
+	@Override
+	public EntryStore snapshot()
+	{
+		ConcurrentNavigableMap<String, SequencedEntry> copy = new ConcurrentSkipListMap<String, SequencedEntry>(
+			entries);
+		// read after copying, so entries added to the snapshot follow
+		// the copied ones
+		return new ConcurrentEntryStore(copy, sequence.get());
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> subtree(String prefix)
+	{
+		return unwrap(JarManagerUtils.subtree(entries, prefix));
+	}
+
+	private List<Entry<JarEntry, BytesWrapper>> unwrap(
+		List<SequencedEntry> sequenced)
+	{
+		List<Entry<JarEntry, BytesWrapper>> result = new ArrayList<Entry<JarEntry, BytesWrapper>>(
+			sequenced.size());
+		for (SequencedEntry entry : sequenced)
+		{
+			result.add(entry.entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Entry with the sequence number it's been stored with. Its identity
+	 * is compared, so an entry is removed only if it hasn't been replaced.
+	 */
+	private static class SequencedEntry
+	{
+
+		private final Entry<JarEntry, BytesWrapper> entry;
+
+		private final long sequence;
+
+		SequencedEntry(long sequence, Entry<JarEntry, BytesWrapper> entry)
+		{
+			this.sequence = sequence;
+			this.entry = entry;
+		}
+	}
+}
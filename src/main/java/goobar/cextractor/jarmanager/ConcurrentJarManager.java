@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+/**
+ * Thread safe memory implementation of {@link JarManager} interface. Entries
+ * can be added, found and removed by several threads at once; they're kept in
+ * a concurrent map, so there's no global lock. When several threads add an
+ * entry with the same name, exactly one of them succeeds and the others get
+ * {@link EntryDuplicatedException}.
+ * <p>
+ * Entries are kept in the order they've been added in. Lists of entries are
+ * snapshots, they don't change when entries are added or removed later.
+ * Changes of the manifest are serialized. Memory budget, deduplication and
+ * executor should be set before the manager is shared by several threads.
+ *
+ * @author goobar
+ * @see VirtualJarManager
+ */
+public class ConcurrentJarManager extends VirtualJarManager
+{
+
+	/**
+	 * Creates empty archive.
+	 */
+	public ConcurrentJarManager()
+	{
+		super(new ConcurrentEntryStore());
+	}
+
+	/**
+	 * @param virtualArchiveContent
+	 *                store of the entries
+	 */
+	ConcurrentJarManager(EntryStore virtualArchiveContent)
+	{
+		super(virtualArchiveContent);
+	}
+
+	/**
+	 * Entries are copied when the snapshot is created, so it takes time
+	 * linear in the archive size.
+	 */
+	@Override
+	public ConcurrentJarManager snapshot()
+	{
+		return (ConcurrentJarManager) super.snapshot();
+	}
+
+	@Override
+	ConcurrentJarManager createSnapshot(EntryStore virtualArchiveContent)
+	{
+		return new ConcurrentJarManager(virtualArchiveContent);
+	}
+}
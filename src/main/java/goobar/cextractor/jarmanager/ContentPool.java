@@ -0,0 +1,98 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of content arrays indexed by their content, so identical content can
+ * share one array. Arrays are referenced weakly, so an array which is no
+ * longer used by any entry is dropped from the pool.
+ *
+ * @author goobar
+ */
+class ContentPool
+{
+
+	/**
+	 * Number of interned arrays after which the arrays no longer used are
+	 * purged from the pool.
+	 */
+	private static final int PURGE_INTERVAL = 4096;
+
+	private final Map<Integer, List<WeakReference<byte[]>>> buckets;
+
+	private int interned;
+
+	ContentPool()
+	{
+		buckets = new HashMap<Integer, List<WeakReference<byte[]>>>();
+	}
+
+	/**
+	 * Returns array from the pool with the same content as the given one.
+	 * If there's no such array, the given one is added to the pool.
+	 *
+	 * @param bytes
+	 *                the content
+	 * @return pooled array with the same content
+	 */
+	synchronized byte[] intern(byte[] bytes)
+	{
+		Integer hash = Integer.valueOf(Arrays.hashCode(bytes));
+		List<WeakReference<byte[]>> bucket = buckets.get(hash);
+		if (bucket == null)
+		{
+			bucket = new ArrayList<WeakReference<byte[]>>(1);
+			buckets.put(hash, bucket);
+		}
+		for (Iterator<WeakReference<byte[]>> iterator = bucket
+			.iterator(); iterator.hasNext();)
+		{
+			byte[] pooled = iterator.next().get();
+			if (pooled == null)
+			{
+				iterator.remove();
+			}
+			else if (Arrays.equals(pooled, bytes))
+			{
+				return pooled;
+			}
+		}
+		bucket.add(new WeakReference<byte[]>(bytes));
+		if (++interned % PURGE_INTERVAL == 0)
+		{
+			purge();
+		}
+		return bytes;
+	}
+
+	private void purge()
+	{
+		for (Iterator<List<WeakReference<byte[]>>> buckets = this.buckets
+			.values().iterator(); buckets.hasNext();)
+		{
+			List<WeakReference<byte[]>> bucket = buckets.next();
+			for (Iterator<WeakReference<byte[]>> iterator = bucket
+				.iterator(); iterator.hasNext();)
+			{
+				if (iterator.next().get() == null)
+				{
+					iterator.remove();
+				}
+			}
+			if (bucket.isEmpty())
+			{
+				buckets.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Supplies content of an entry which is read only when it's needed, e.g. when
+ * archive is saved. Content can be read several times, so each call has to
+ * return a new stream of the same content.
+ *
+ * @author goobar
+ * @see JarManager#addSuppliedContent(java.util.jar.JarEntry, ContentSupplier)
+ */
+public interface ContentSupplier
+{
+
+	/**
+	 * Opens a new stream of the content. The stream is closed by the
+	 * caller.
+	 *
+	 * @return stream of the content
+	 * @throws IOException
+	 *                 thrown when content cannot be read
+	 */
+	public InputStream openStream() throws IOException;
+}
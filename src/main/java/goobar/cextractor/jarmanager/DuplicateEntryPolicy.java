@@ -0,0 +1,35 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+/**
+ * Decides what {@link JarMerger} does with an entry whose name is already in
+ * the merged archive. Duplicated directories and manifests are always
+ * skipped, the first one is kept.
+ *
+ * @author goobar
+ * @see JarMerger#setDuplicateEntryPolicy(DuplicateEntryPolicy)
+ */
+public enum DuplicateEntryPolicy
+{
+
+	/**
+	 * The entry of the first archive containing it is kept, the others
+	 * are skipped.
+	 */
+	FIRST_WINS,
+
+	/**
+	 * Merging fails with {@link EntryDuplicatedException}.
+	 */
+	FAIL,
+
+	/**
+	 * Service provider configuration files (entries in
+	 * <code>META-INF/services/</code>) of all archives are concatenated,
+	 * the first entry is kept for other entries.
+	 */
+	MERGE_SERVICES
+}
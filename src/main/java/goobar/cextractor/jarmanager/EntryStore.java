@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.jar.JarEntry;
+
+/**
+ * Entries of a {@link VirtualJarManager} indexed by their names and kept in
+ * insertion order. Entries are also sorted by their names, so entries of a
+ * directory or with a prefix are found without going through all of them.
+ *
+ * @author goobar
+ */
+interface EntryStore
+{
+
+	/**
+	 * @param directoryName
+	 *                name of the directory, empty for the root
+	 * @return entries directly in the directory, sorted by their names
+	 * @see JarManagerUtils#children(java.util.NavigableMap, String)
+	 */
+	List<Entry<JarEntry, BytesWrapper>> children(String directoryName);
+
+	/**
+	 * @return snapshot of the entries in insertion order
+	 */
+	List<Entry<JarEntry, BytesWrapper>> entries();
+
+	/**
+	 * @param name
+	 *                name of the entry
+	 * @return the entry, or null if there's no entry with the name
+	 */
+	Entry<JarEntry, BytesWrapper> get(String name);
+
+	/**
+	 * Stores the entry unless there's already an entry with the same name.
+	 *
+	 * @param entry
+	 *                the entry with its content
+	 * @return the entry already stored (the given one isn't stored then),
+	 *         or null
+	 */
+	Entry<JarEntry, BytesWrapper> putIfAbsent(
+		Entry<JarEntry, BytesWrapper> entry);
+
+	/**
+	 * Removes the entry if it's stored (not just an entry with the same
+	 * name).
+	 *
+	 * @param entry
+	 *                the entry
+	 * @return the removed entry with its content, or null
+	 */
+	Entry<JarEntry, BytesWrapper> remove(JarEntry entry);
+
+	/**
+	 * @param name
+	 *                name of the entry
+	 * @return the removed entry, or null if there's no entry with the name
+	 */
+	Entry<JarEntry, BytesWrapper> remove(String name);
+
+	/**
+	 * Replaces the stored entry with another entry with the same name,
+	 * keeping its position in insertion order. Does nothing if the entry
+	 * isn't stored any more (it's been removed or replaced).
+	 *
+	 * @param stored
+	 *                the stored entry
+	 * @param entry
+	 *                the entry with its content
+	 * @return true if the entry has been replaced
+	 */
+	boolean replace(Entry<JarEntry, BytesWrapper> stored,
+		Entry<JarEntry, BytesWrapper> entry);
+
+	/**
+	 * @return number of the entries
+	 */
+	int size();
+
+	/**
+	 * Creates a store with the same entries. Entries added to or removed
+	 * from one of the stores later aren't seen by the other one.
+	 *
+	 * @return the new store
+	 */
+	EntryStore snapshot();
+
+	/**
+	 * @param prefix
+	 *                prefix of the names
+	 * @return entries whose names start with the prefix, sorted by their
+	 *         names
+	 */
+	List<Entry<JarEntry, BytesWrapper>> subtree(String prefix);
+}
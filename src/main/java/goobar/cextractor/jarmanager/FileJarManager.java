@@ -4,47 +4,143 @@
  */
 package goobar.cextractor.jarmanager;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import aQute.lib.osgi.Analyzer;
+import aQute.lib.osgi.Jar;
+import goobar.cextractor.jarmanager.ZipArchiveWriter.CompressedContent;
 
 /**
  * File implementation of {@link JarManager} interface. As name suggests, this
  * implementation works only with files.
+ * <p>
+ * An existing archive stays opened until {@link #close()} is called, so its
+ * unchanged entries are copied as they're compressed when it's saved. It can
+ * be opened in lazy mode (see {@link #FileJarManager(File, boolean)}). Then
+ * only its central directory is read when the manager is created and content
+ * of an entry is read the first time it's needed.
+ * <p>
+ * When an executor is set (see {@link #setExecutor(ExecutorService)}), entries
+ * are compressed in parallel when the archive is saved, written in parallel
+ * when it's extracted and files are read in parallel when a directory is
+ * added.
+ * <p>
+ * When only new entries have been added to an existing archive, it can be
+ * saved incrementally (see {@link #setIncrementalSave(boolean)}).
+ * <p>
+ * Identical content of entries can be shared in memory (see
+ * {@link #setDeduplication(boolean)}) and compressed only once when the
+ * archive is saved (see {@link #setCompressIdenticalContentOnce(boolean)}).
  *
  * @author goobar
  */
-public class FileJarManager implements JarManager
+public class FileJarManager implements JarManager, Closeable
 {
 
+	/**
+	 * Runs asynchronous saves and extractions when no executor is given.
+	 * Its threads are daemons, so they don't keep the JVM running.
+	 */
+	private static final ExecutorService ASYNC_EXECUTOR = Executors
+		.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "jar-manager-async");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * Maximum number of entries compressed ahead of the one being written
+	 * when saving in parallel.
+	 */
+	private static final int PARALLEL_SAVE_WINDOW = 256;
+
 	private static Logger logger = LoggerFactory
 		.getLogger(FileJarManager.class);
 
+	private ArchiveSource archiveSource;
+
+	/**
+	 * Fingerprint of the classes the manifest has been calculated from,
+	 * see {@link #classesFingerprint()}.
+	 */
+	private long calculatedManifestClasses;
+
+	/**
+	 * Modification count of the virtual archive when the manifest has
+	 * been calculated, -1 if it hasn't been calculated.
+	 */
+	private long calculatedManifestModifications = -1;
+
+	private boolean compressIdenticalContentOnce;
+
+	private CompressionPolicy compressionPolicy;
+
+	private ExecutorService executor;
+
 	private boolean generateManifest;
 
-	private File jarFile;
+	private boolean incrementalSave;
 
-	private JarOutputStream jarOS;
+	private File jarFile;
 
 	private Boolean manifestAdded;
 
+	private ManifestCache manifestCache;
+
+	/**
+	 * The archive file as it's on disk, or null if it's unknown.
+	 */
+	private PersistedArchive persistedArchive;
+
 	private VirtualJarManager virtualJarManager;
 
 	/**
@@ -54,7 +150,8 @@ public class FileJarManager implements JarManager
 	 *                If file already exists its content (excluding
 	 *                manifest, which is generated) is copied. Otherwise,
 	 *                new archive is created. The archive is persisted when
-	 *                {@link #save()} method is called.
+	 *                {@link #save()} method is called. An existing archive
+	 *                is kept opened until {@link #close()} is called.
 	 *
 	 * @throws IOException
 	 * @throws ArchiveModificationException
@@ -64,7 +161,54 @@ public class FileJarManager implements JarManager
 	public FileJarManager(File jarFile) throws IOException,
 		ArchiveModificationException, EntryDuplicatedException
 	{
-		init(jarFile);
+		this(jarFile, false);
+	}
+
+	/**
+	 * Creates file JarManager.
+	 *
+	 * @param jarFile
+	 *                If file already exists its content (excluding
+	 *                manifest, which is generated) is copied. Otherwise,
+	 *                new archive is created. The archive is persisted when
+	 *                {@link #save()} method is called. An existing archive
+	 *                is kept opened until {@link #close()} is called, so
+	 *                unchanged entries can be copied as they're compressed.
+	 * @param lazy
+	 *                if true, content of an existing archive isn't copied
+	 *                when the manager is created. Only entries are read
+	 *                and content of each entry is read when it's needed
+	 *                for the first time.
+	 *
+	 * @throws IOException
+	 * @throws ArchiveModificationException
+	 * @throws EntryDuplicatedException
+	 */
+	@SuppressWarnings("javadoc")
+	public FileJarManager(File jarFile, boolean lazy) throws IOException,
+		ArchiveModificationException, EntryDuplicatedException
+	{
+		init(jarFile, lazy);
+	}
+
+	/**
+	 * Creates copy of the archive, see {@link #snapshot(File)}.
+	 */
+	private FileJarManager(FileJarManager archive, File jarFile)
+	{
+		this.jarFile = jarFile;
+		virtualJarManager = archive.virtualJarManager.snapshot();
+		archiveSource = archive.archiveSource != null
+			? archive.archiveSource.retain() : null;
+		calculatedManifestClasses = archive.calculatedManifestClasses;
+		calculatedManifestModifications = archive.calculatedManifestModifications;
+		compressIdenticalContentOnce = archive.compressIdenticalContentOnce;
+		compressionPolicy = archive.compressionPolicy;
+		executor = archive.executor;
+		generateManifest = archive.generateManifest;
+		incrementalSave = archive.incrementalSave;
+		manifestAdded = archive.manifestAdded;
+		manifestCache = archive.manifestCache;
 	}
 
 	@Override
@@ -88,6 +232,13 @@ public class FileJarManager implements JarManager
 		virtualJarManager.addDirectory(dir);
 	}
 
+	@Override
+	public void addEntries(Collection<Entry<JarEntry, BytesWrapper>> entries)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		virtualJarManager.addEntries(entries);
+	}
+
 	@Override
 	public void addEntry(JarEntry entry)
 		throws ArchiveModificationException, EntryDuplicatedException
@@ -134,6 +285,47 @@ public class FileJarManager implements JarManager
 		virtualJarManager.addPropertiesToManifest(properties);
 	}
 
+	@Override
+	public void addStreamContent(JarEntry entry, InputStream content)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		virtualJarManager.addStreamContent(entry, content);
+	}
+
+	@Override
+	public void addSuppliedContent(JarEntry entry, ContentSupplier content)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		virtualJarManager.addSuppliedContent(entry, content);
+	}
+
+	/**
+	 * Closes the existing archive and deletes the spill file
+	 * (see {@link #setMemoryBudget(long)}), unless they're shared with a
+	 * snapshot which hasn't been closed. Content of entries which hasn't
+	 * been read yet is no longer available.
+	 *
+	 * @throws IOException
+	 *                 thrown when archive cannot be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			ArchiveSource source = archiveSource;
+			archiveSource = null;
+			if (source != null)
+			{
+				source.release();
+			}
+		}
+		finally
+		{
+			virtualJarManager.close();
+		}
+	}
+
 	@Override
 	public List<JarEntry> entries() throws ArchiveReadException
 	{
@@ -147,56 +339,91 @@ public class FileJarManager implements JarManager
 		return virtualJarManager.entriesWithContent();
 	}
 
+	/**
+	 * Extracts archive. Each directory is created only once. When an
+	 * executor is set (see {@link #setExecutor(ExecutorService)}),
+	 * directories are created first and then content of the entries is
+	 * written in parallel. Unchanged content of stored (uncompressed)
+	 * entries of an opened archive is transferred straight from the
+	 * archive, without copying it to the heap.
+	 */
 	@Override
 	public void extract(Path dir) throws CannotExtractArchiveException
 	{
 		List<Entry<JarEntry, BytesWrapper>> entries = virtualJarManager
-			.entriesWithContent();
+			.storedEntries();
+		Set<Path> createdDirectories = new HashSet<Path>();
+		if (executor != null)
+		{
+			extractInParallel(dir, entries, createdDirectories);
+			return;
+		}
 		for (Entry<JarEntry, BytesWrapper> entry : entries)
 		{
-			// Path entryAsPath =
-			// JarManagerUtils.convertEntryToPath(entry.getKey(),
-			// dir);
-			Path entryAsPath = JarManagerUtils
-				.convertEntryToRelativePath(entry.getKey());
 			try
 			{
-				if (entry.getKey().isDirectory())
+				createEntryDirectories(dir, entry.getKey(),
+					createdDirectories);
+				if (!entry.getKey().isDirectory())
 				{
-					Files.createDirectories(
-						dir.resolve(entryAsPath));
-				}
-				else
-				{
-					int nameCount = entryAsPath
-						.getNameCount();
-					if (nameCount > 2)
-					{
-						Path subpath = entryAsPath
-							.subpath(0,
-								nameCount - 1);
-						// if (entryAsPath.isAbsolute())
-						// {
-						// subpath =
-						// subpath.toAbsolutePath();
-						// }
-						Files.createDirectories(
-							dir.resolve(subpath));
-					}
-					Files.write(dir.resolve(entryAsPath),
-						entry.getValue().getBytes());
+					writeEntryContent(dir, entry);
 				}
 			}
 			catch (Exception ex)
 			{
-				throw new CannotExtractArchiveException(String
-					.format("Cannot extract archive. Reason: %s",
-						ex.toString()),
-					ex);
+				throwCannotExtractArchiveException(ex);
 			}
 		}
 	}
 
+	/**
+	 * Extracts archive in the background, see {@link #extract(Path)}.
+	 *
+	 * @param dir
+	 *                the target directory
+	 * @return future completed when archive is extracted, it fails with
+	 *         {@link CannotExtractArchiveException}
+	 */
+	public Future<Void> extractAsync(Path dir)
+	{
+		return extractAsync(dir, null);
+	}
+
+	/**
+	 * Extracts archive in the background, see {@link #extract(Path)}. The
+	 * archive mustn't be modified until it's extracted.
+	 *
+	 * @param dir
+	 *                the target directory
+	 * @param asyncExecutor
+	 *                executor extracting the archive, or null to use a
+	 *                default one. It shouldn't be a bounded executor set
+	 *                by {@link #setExecutor(ExecutorService)}, as the
+	 *                extraction waits for tasks submitted to that one.
+	 * @return future completed when archive is extracted, it fails with
+	 *         {@link CannotExtractArchiveException}
+	 */
+	public Future<Void> extractAsync(final Path dir,
+		ExecutorService asyncExecutor)
+	{
+		return submitAsync(asyncExecutor, new Callable<Void>()
+		{
+			@Override
+			public Void call() throws CannotExtractArchiveException
+			{
+				extract(dir);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> findChildren(
+		String directoryName) throws ArchiveReadException
+	{
+		return virtualJarManager.findChildren(directoryName);
+	}
+
 	@Override
 	public Entry<JarEntry, BytesWrapper> findEntryByName(String entryName)
 		throws ArchiveReadException
@@ -204,12 +431,28 @@ public class FileJarManager implements JarManager
 		return virtualJarManager.findEntryByName(entryName);
 	}
 
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> findSubtree(String prefix)
+		throws ArchiveReadException
+	{
+		return virtualJarManager.findSubtree(prefix);
+	}
+
 	@Override
 	public void generateManifestFlag(boolean generateManifest)
 	{
 		this.generateManifest = generateManifest;
 	}
 
+	/**
+	 * @return number of bytes saved by entries sharing their content, see
+	 *         {@link VirtualJarManager#getDeduplicatedBytes()}
+	 */
+	public long getDeduplicatedBytes()
+	{
+		return virtualJarManager.getDeduplicatedBytes();
+	}
+
 	/**
 	 * @return the jarFile
 	 */
@@ -224,6 +467,17 @@ public class FileJarManager implements JarManager
 		return virtualJarManager.manifest();
 	}
 
+	/**
+	 * Content of an archive opened lazily is read (and inflated) from the
+	 * archive file as the stream is read.
+	 */
+	@Override
+	public InputStream openEntryStream(String entryName)
+		throws ArchiveReadException
+	{
+		return virtualJarManager.openEntryStream(entryName);
+	}
+
 	@Override
 	public void removeEntry(JarEntry entry)
 		throws ArchiveModificationException
@@ -238,43 +492,184 @@ public class FileJarManager implements JarManager
 		virtualJarManager.removeEntry(entryName);
 	}
 
+	@Override
+	public void removeSubtree(String prefix)
+		throws ArchiveModificationException
+	{
+		virtualJarManager.removeSubtree(prefix);
+	}
+
+	/**
+	 * Saves archive to disk. Unless a manifest was added, the manifest is
+	 * calculated by bnd from the content in memory, so the archive is
+	 * written only once.
+	 * <p>
+	 * Nothing is done when the archive file already contains all the
+	 * entries and the manifest, i.e. no entry has been added or removed,
+	 * no content has been changed and neither the manifest nor the
+	 * generate manifest flag have been changed since the archive was
+	 * opened or saved. The manifest isn't calculated again unless an
+	 * entry has been added or removed, a class has been changed or
+	 * properties have been added to the manifest.
+	 */
 	@Override
 	public void save() throws ArchiveModificationException
 	{
 		try
 		{
-			saveVirtualArchiveToDisk(null);
-			closeArchive();
-			Analyzer analyzer = new Analyzer();
-			analyzer.setJar(jarFile);
-			if (!manifestAdded)
+			if (isSaved())
 			{
-				addPropertiesToAnalyzer(analyzer);
-				Manifest manifest = analyzer.calcManifest();
-				// addMissingManifestProperties(manifest);
-				virtualJarManager.addManifest(manifest);
-				manifestAdded = false;
+				return;
 			}
-			analyzer.close();
-			if (generateManifest)
+			if (!manifestAdded)
 			{
-				saveVirtualArchiveToDisk(
-					virtualJarManager.manifest());
+				long classes = classesFingerprint();
+				if (calculatedManifestModifications != virtualJarManager
+					.modificationCount()
+					|| calculatedManifestClasses != classes)
+				{
+					Manifest manifest = calculateManifest();
+					// addMissingManifestProperties(manifest);
+					virtualJarManager.addManifest(manifest);
+					calculatedManifestModifications = virtualJarManager
+						.modificationCount();
+					calculatedManifestClasses = classes;
+				}
 			}
-			else
+			Manifest manifest = generateManifest
+				? virtualJarManager.manifest() : null;
+			if (!incrementalSave || !appendToArchive(manifest))
 			{
-				saveVirtualArchiveToDisk(null);
+				saveVirtualArchiveToDisk(manifest);
 			}
+			persistedArchive.modificationCount = virtualJarManager
+				.modificationCount();
+			persistedArchive.generateManifest = generateManifest;
+			persistedArchive.setMemoryManifest(
+				virtualJarManager.manifest());
 		}
 		catch (Exception ex)
 		{
 			throw new ArchiveModificationException(ex.getMessage(),
 				ex);
 		}
-		finally
+	}
+
+	/**
+	 * Saves archive in the background, see {@link #save()}.
+	 *
+	 * @return future completed when archive is saved, it fails with
+	 *         {@link ArchiveModificationException}
+	 */
+	public Future<Void> saveAsync()
+	{
+		return saveAsync(null);
+	}
+
+	/**
+	 * Saves archive in the background, see {@link #save()}. The archive
+	 * mustn't be modified until it's saved.
+	 *
+	 * @param asyncExecutor
+	 *                executor saving the archive, or null to use a default
+	 *                one. It shouldn't be a bounded executor set by
+	 *                {@link #setExecutor(ExecutorService)}, as saving
+	 *                waits for tasks submitted to that one.
+	 * @return future completed when archive is saved, it fails with
+	 *         {@link ArchiveModificationException}
+	 */
+	public Future<Void> saveAsync(ExecutorService asyncExecutor)
+	{
+		return submitAsync(asyncExecutor, new Callable<Void>()
 		{
-			closeArchiveFinally();
-		}
+			@Override
+			public Void call() throws ArchiveModificationException
+			{
+				save();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Enables compressing identical content only once when the archive is
+	 * saved. Entries whose content is equal to the content of another
+	 * entry written by the same save get the same compressed data.
+	 *
+	 * @param compressIdenticalContentOnce
+	 *                true to compress identical content once, false
+	 *                (default) to compress content of each entry
+	 */
+	public void setCompressIdenticalContentOnce(
+		boolean compressIdenticalContentOnce)
+	{
+		this.compressIdenticalContentOnce = compressIdenticalContentOnce;
+	}
+
+	/**
+	 * Sets policy deciding how content of each entry is compressed when
+	 * the archive is saved, e.g. {@link SkipCompressedContentPolicy} which
+	 * stores content that is already compressed. Content of unchanged
+	 * entries of an existing archive is copied as it is, regardless of
+	 * the policy, and entries whose method is
+	 * {@link java.util.zip.ZipEntry#STORED} are always stored.
+	 *
+	 * @param compressionPolicy
+	 *                the policy, or null to deflate all content with the
+	 *                default level (default)
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy)
+	{
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * Enables deduplication of content, see
+	 * {@link VirtualJarManager#setDeduplication(boolean)}.
+	 *
+	 * @param deduplication
+	 *                true to share identical content between entries
+	 */
+	public void setDeduplication(boolean deduplication)
+	{
+		virtualJarManager.setDeduplication(deduplication);
+	}
+
+	/**
+	 * Sets executor used to compress entries when the archive is saved, to
+	 * write entries when the archive is extracted and to read files when a
+	 * directory is added. Entries are compressed in parallel and written
+	 * in order, so the archive is the same as the one saved sequentially.
+	 * The executor isn't shut down by this manager.
+	 *
+	 * @param executor
+	 *                the executor, or null to save sequentially (default)
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+		virtualJarManager.setExecutor(executor);
+	}
+
+	/**
+	 * Enables incremental save. When entries of the existing archive are
+	 * unchanged, still in their order and followed only by new entries,
+	 * {@link #save()} appends the new entries to the archive file and
+	 * writes a new central directory instead of rewriting the whole
+	 * archive. The manifest has to be unchanged too (except for its
+	 * Bnd-LastModified header, the original one is kept). Otherwise the
+	 * archive is rewritten as usual.
+	 * <p>
+	 * The archive file is modified in place, so it's left damaged if
+	 * saving fails.
+	 *
+	 * @param incrementalSave
+	 *                true to save incrementally when possible, false
+	 *                (default) to always rewrite the archive
+	 */
+	public void setIncrementalSave(boolean incrementalSave)
+	{
+		this.incrementalSave = incrementalSave;
 	}
 
 	/**
@@ -284,6 +679,61 @@ public class FileJarManager implements JarManager
 	public void setJarFile(File jarFile)
 	{
 		this.jarFile = jarFile;
+		persistedArchive = null;
+	}
+
+	/**
+	 * Sets cache of manifests calculated by bnd. The manifest is
+	 * calculated only if the cache doesn't contain one calculated for
+	 * archive with the same name, the same entries, the same classes and
+	 * the same manifest properties. Its Bnd-LastModified header is the
+	 * one of the cached manifest.
+	 *
+	 * @param manifestCache
+	 *                the cache, which can be shared by several managers,
+	 *                or null to always calculate the manifest (default)
+	 */
+	public void setManifestCache(ManifestCache manifestCache)
+	{
+		this.manifestCache = manifestCache;
+	}
+
+	/**
+	 * Limits memory used by the content of entries, see
+	 * {@link VirtualJarManager#setMemoryBudget(long)}. Entries of an
+	 * existing archive are kept in memory only when it's opened in default
+	 * mode, so a large archive should be opened in lazy mode.
+	 *
+	 * @param budget
+	 *                maximum number of content bytes kept in memory
+	 */
+	public void setMemoryBudget(long budget)
+	{
+		virtualJarManager.setMemoryBudget(budget);
+	}
+
+	/**
+	 * Creates a copy of this archive saved to another file, e.g. to build
+	 * a variant of it without reading the archive again. The copy shares
+	 * the entries and their content with this archive until one of them is
+	 * modified (see {@link VirtualJarManager#snapshot()}) and it has the
+	 * same settings. Nothing is written until {@link #save()} is called on
+	 * the copy.
+	 * <p>
+	 * The copy shares the opened archive file with this archive, so
+	 * creating it doesn't depend on the archive size. The file is kept
+	 * opened until both archives are closed (see {@link #close()}). When
+	 * one of them is saved to the file, it reads content which hasn't
+	 * been read yet from the new file, while the other one keeps reading
+	 * the replaced file.
+	 *
+	 * @param jarFile
+	 *                file the copy is saved to
+	 * @return the copy
+	 */
+	public FileJarManager snapshot(File jarFile)
+	{
+		return new FileJarManager(this, jarFile);
 	}
 
 	private void addPropertiesToAnalyzer(Analyzer analyzer)
@@ -301,119 +751,967 @@ public class FileJarManager implements JarManager
 		}
 	}
 
-	private void closeArchive() throws IOException
+	/**
+	 * Appends new entries to the archive file if it already contains all
+	 * the other entries, see {@link #setIncrementalSave(boolean)}.
+	 *
+	 * @return false if archive has to be rewritten
+	 */
+	private boolean appendToArchive(Manifest manifest) throws IOException
 	{
-		if (jarOS != null)
+		PersistedArchive persisted = persistedArchive;
+		if (persisted == null || jarFile.length() != persisted.length)
 		{
-			jarOS.close();
+			return false;
 		}
-	}
-
-	private void closeArchiveFinally()
-	{
+		List<ZipEntryRecord> records = persisted.records;
+		int skipped = 0;
+		if (manifest != null)
+		{
+			if (records.isEmpty() || !JarFile.MANIFEST_NAME
+				.equals(records.get(0).getName())
+				|| !isSameManifest(persisted.manifest, manifest))
+			{
+				return false;
+			}
+			// the original manifest is kept
+			skipped = 1;
+		}
+		List<Entry<JarEntry, BytesWrapper>> entries = entriesToWrite(
+			manifest);
+		if (!containsEntries(persisted, entries, skipped))
+		{
+			return false;
+		}
+		List<Entry<JarEntry, BytesWrapper>> appended = entries
+			.subList(records.size() - skipped, entries.size());
+		if (appended.isEmpty())
+		{
+			return true;
+		}
+		// the archive won't be valid until the central directory is
+		// written, so it isn't known any more in case of failure
+		persistedArchive = null;
+		FileChannel channel = FileChannel.open(jarFile.toPath(),
+			StandardOpenOption.WRITE);
+		ZipArchiveWriter writer = null;
 		try
 		{
-			closeArchive();
+			channel.truncate(persisted.end);
+			channel.position(persisted.end);
+			writer = new ZipArchiveWriter(
+				Channels.newOutputStream(channel),
+				persisted.end, records);
+			writeEntries(writer, appended);
+			writer.close();
 		}
-		catch (IOException ex)
+		finally
 		{
-			logWarn(ex.getMessage(), ex);
+			closeWriterFinally(writer);
+			channel.close();
 		}
+		persistedArchive = new PersistedArchive(writer.records(),
+			writer.centralDirectoryOffset(), jarFile.length(),
+			persisted.manifest);
+		persistedArchive.content.putAll(persisted.content);
+		persistedArchive.addWrittenContent(appended);
+		return true;
 	}
 
-	private void copyArchiveContent() throws IOException,
-		ArchiveModificationException, EntryDuplicatedException
+	/**
+	 * Manifest is taken from the cache (see
+	 * {@link #setManifestCache(ManifestCache)}) if it's been calculated
+	 * for the same archive before.
+	 */
+	private Manifest calculateManifest() throws Exception
 	{
-		if (!jarFile.exists())
-		{
-			return;
-		}
-		JarFile jarArchive = null;
+		Analyzer analyzer = new Analyzer();
 		try
 		{
-			jarArchive = new JarFile(jarFile);
-			List<JarEntry> entries = Collections
-				.list(jarArchive.entries());
-			for (JarEntry entry : entries)
+			analyzer.setJar(createAnalyzedJar());
+			addPropertiesToAnalyzer(analyzer);
+			ManifestCache cache = manifestCache;
+			String key = cache != null ? manifestKey(analyzer) : null;
+			Manifest manifest = key != null ? cache.get(key) : null;
+			if (manifest == null)
 			{
-				if (entry.isDirectory())
-				{
-					addEntry(entry);
-				}
-				else
+				manifest = analyzer.calcManifest();
+				if (key != null)
 				{
-					InputStream is = jarArchive
-						.getInputStream(entry);
-					BytesWrapper content = new BytesWrapper(
-						IOUtils.toByteArray(is));
-					addContent(entry, content);
+					cache.put(key, manifest);
 				}
 			}
+			return manifest;
 		}
 		finally
 		{
-			if (jarArchive != null)
-			{
-				try
-				{
-					jarArchive.close();
-				}
-				catch (IOException ex)
-				{
-					logWarn(ex.getMessage(), ex);
-				}
-			}
+			analyzer.close();
 		}
 	}
 
-	private void init(File jarFile) throws IOException,
-		ArchiveModificationException, EntryDuplicatedException
-	{
-		this.jarFile = jarFile;
-		virtualJarManager = new VirtualJarManager();
-		manifestAdded = false;
-		generateManifest = true;
-		copyArchiveContent();
-	}
-
 	/**
-	 * @param message
-	 * @param ex
+	 * @return CRC-32 of names, CRCs and sizes of the class entries, which
+	 *         changes when a class is changed
 	 */
-	private void logWarn(String message, IOException ex)
+	private long classesFingerprint()
 	{
-		logger.warn(message, ex);
+		CRC32 fingerprint = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		for (Entry<JarEntry, BytesWrapper> entry : virtualJarManager
+			.storedEntries())
+		{
+			String name = entry.getKey().getName();
+			if (entry.getValue() == null || !name
+				.endsWith(JarManagerUtils.JAVA_CLASS_FILE_EXTENSION))
+			{
+				continue;
+			}
+			fingerprint.update(name.getBytes(ZipFormat.UTF8));
+			buffer.clear();
+			buffer.putLong(entry.getValue().crc());
+			buffer.putLong(entry.getValue().length());
+			fingerprint.update(buffer.array());
+		}
+		return fingerprint.getValue();
 	}
 
-	private void openArchive(Manifest manifest) throws IOException
+	private void closeWriterFinally(ZipArchiveWriter writer)
 	{
-		closeArchive();
-		if (manifest != null)
+		if (writer == null)
 		{
-			jarOS = new JarOutputStream(
-				new FileOutputStream(jarFile), manifest);
+			return;
 		}
-		else
+		try
+		{
+			writer.close();
+		}
+		catch (IOException ex)
 		{
-			jarOS = new JarOutputStream(
-				new FileOutputStream(jarFile));
+			logWarn(ex.getMessage(), ex);
 		}
 	}
 
-	private void saveVirtualArchiveToDisk(Manifest manifest)
+	/**
+	 * Checks whether the archive file contains the entries after the
+	 * skipped records (the manifest), followed by new entries only.
+	 */
+	private boolean containsEntries(PersistedArchive persisted,
+		List<Entry<JarEntry, BytesWrapper>> entries, int skipped)
 		throws IOException
 	{
-		openArchive(manifest);
+		List<ZipEntryRecord> records = persisted.records;
+		if (entries.size() < records.size() - skipped)
+		{
+			return false;
+		}
+		for (int i = skipped; i < records.size(); i++)
+		{
+			if (!isPersisted(persisted, records.get(i),
+				entries.get(i - skipped)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates bnd jar with the same resources as the archive which would be
+	 * written to disk (directories are skipped, just like bnd does when it
+	 * reads an archive).
+	 */
+	private Jar createAnalyzedJar()
+	{
+		String name = jarFile.getName();
+		if (name.endsWith(JarManagerUtils.JAR_EXTENSION))
+		{
+			name = name.substring(0, name.length()
+				- JarManagerUtils.JAR_EXTENSION.length());
+		}
+		Jar jar = new Jar(name);
+		long now = System.currentTimeMillis();
+		for (Entry<JarEntry, BytesWrapper> entryWithContent : virtualJarManager
+			.storedEntries())
+		{
+			JarEntry entry = entryWithContent.getKey();
+			if (entry.isDirectory())
+			{
+				continue;
+			}
+			long lastModified = entry.getTime() != -1
+				? entry.getTime() : now;
+			jar.putResource(entry.getName(),
+				new BytesWrapperResource(
+					entryWithContent.getValue(),
+					lastModified),
+				true);
+		}
+		return jar;
+	}
+
+	/**
+	 * Creates the directory entry or parent directories of the content
+	 * entry. Directories which have already been created are skipped.
+	 */
+	private void createEntryDirectories(Path dir, JarEntry entry,
+		Set<Path> createdDirectories) throws IOException
+	{
+		// Path entryAsPath =
+		// JarManagerUtils.convertEntryToPath(entry.getKey(),
+		// dir);
+		Path entryAsPath = JarManagerUtils
+			.convertEntryToRelativePath(entry);
+		Path directory;
+		if (entry.isDirectory())
+		{
+			directory = entryAsPath;
+		}
+		else
+		{
+			int nameCount = entryAsPath.getNameCount();
+			if (nameCount < 2)
+			{
+				return;
+			}
+			directory = entryAsPath.subpath(0, nameCount - 1);
+		}
+		if (createdDirectories.add(directory))
+		{
+			Files.createDirectories(dir.resolve(directory));
+		}
+	}
+
+	private File createTempArchiveFile() throws IOException
+	{
+		File dir = jarFile.getAbsoluteFile().getParentFile();
+		return File.createTempFile(jarFile.getName(), ".tmp", dir);
+	}
+
+	/**
+	 * @return entries written after the manifest
+	 */
+	private List<Entry<JarEntry, BytesWrapper>> entriesToWrite(
+		Manifest manifest)
+	{
+		List<Entry<JarEntry, BytesWrapper>> entries = new ArrayList<Entry<JarEntry, BytesWrapper>>();
 		for (Entry<JarEntry, BytesWrapper> entryWithContent : virtualJarManager
-			.entriesWithContent())
+			.storedEntries())
+		{
+			if (manifest != null && JarFile.MANIFEST_NAME.equals(
+				entryWithContent.getKey().getName()))
+			{
+				// replaced by the written manifest
+				continue;
+			}
+			entries.add(entryWithContent);
+		}
+		return entries;
+	}
+
+	private void extractInParallel(Path dir,
+		List<Entry<JarEntry, BytesWrapper>> entries,
+		Set<Path> createdDirectories)
+		throws CannotExtractArchiveException
+	{
+		List<Future<Void>> writes = new ArrayList<Future<Void>>();
+		try
+		{
+			for (Entry<JarEntry, BytesWrapper> entry : entries)
+			{
+				try
+				{
+					createEntryDirectories(dir,
+						entry.getKey(),
+						createdDirectories);
+				}
+				catch (Exception ex)
+				{
+					throwCannotExtractArchiveException(ex);
+				}
+			}
+			for (Entry<JarEntry, BytesWrapper> entry : entries)
+			{
+				if (!entry.getKey().isDirectory())
+				{
+					writes.add(submitEntryWrite(dir, entry));
+				}
+			}
+			for (Future<Void> write : writes)
+			{
+				try
+				{
+					write.get();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					throwCannotExtractArchiveException(ex);
+				}
+				catch (ExecutionException ex)
+				{
+					throwCannotExtractArchiveException(
+						ex.getCause());
+				}
+			}
+		}
+		finally
+		{
+			for (Future<Void> write : writes)
+			{
+				write.cancel(true);
+			}
+		}
+	}
+
+	private CompressedContent getCompressedContent(
+		Future<CompressedContent> content) throws IOException
+	{
+		try
+		{
+			return content.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(ex.getMessage());
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException(String.format(
+				"Cannot compress entry. Reason: %s",
+				ex.getCause().toString()), ex.getCause());
+		}
+	}
+
+	private void init(File jarFile, boolean lazy) throws IOException,
+		ArchiveModificationException, EntryDuplicatedException
+	{
+		this.jarFile = jarFile;
+		virtualJarManager = new VirtualJarManager();
+		manifestAdded = false;
+		generateManifest = true;
+		if (!jarFile.exists())
+		{
+			return;
+		}
+		archiveSource = ArchiveSource.open(jarFile);
+		try
+		{
+			readArchiveEntries(lazy);
+		}
+		catch (IOException ex)
+		{
+			archiveSource.close();
+			throw ex;
+		}
+		List<ZipEntryRecord> records = archiveSource.records();
+		Manifest manifest = null;
+		if (!records.isEmpty() && JarFile.MANIFEST_NAME
+			.equals(records.get(0).getName()))
+		{
+			manifest = new Manifest(new ByteArrayInputStream(
+				archiveSource.read(JarFile.MANIFEST_NAME)));
+		}
+		persistedArchive = new PersistedArchive(records,
+			archiveSource.centralDirectoryOffset(), jarFile.length(),
+			manifest);
+		persistedArchive.modificationCount = virtualJarManager
+			.modificationCount();
+		persistedArchive.generateManifest = generateManifest;
+		persistedArchive.setMemoryManifest(virtualJarManager.manifest());
+	}
+
+	/**
+	 * Checks whether the entry is the one written to the archive file
+	 * with the given record.
+	 */
+	private boolean isPersisted(PersistedArchive persisted,
+		ZipEntryRecord record, Entry<JarEntry, BytesWrapper> entry)
+		throws IOException
+	{
+		JarEntry jarEntry = entry.getKey();
+		BytesWrapper content = entry.getValue();
+		if (!record.getName().equals(jarEntry.getName())
+			|| jarEntry.getTime() != -1 && ZipFormat.javaToDosTime(
+				jarEntry.getTime()) != record.getDosTime()
+			|| (jarEntry.getComment() == null
+				? record.getComment() != null
+				: !jarEntry.getComment()
+					.equals(record.getComment())))
+		{
+			return false;
+		}
+		if (content == null || jarEntry.isDirectory())
+		{
+			return record.getSize() == 0;
+		}
+		if (content instanceof ArchiveEntryBytesWrapper)
+		{
+			return ((ArchiveEntryBytesWrapper) content)
+				.isUnchangedContentOf(record);
+		}
+		if (persisted.content.get(record.getName()) != content)
+		{
+			return false;
+		}
+		return content.length() == record.getSize()
+			&& content.crc() == record.getCrc();
+	}
+
+	/**
+	 * Manifests are the same if they differ only in the time bnd
+	 * generated them.
+	 */
+	private boolean isSameManifest(Manifest persisted, Manifest manifest)
+	{
+		if (persisted == null)
+		{
+			return false;
+		}
+		Manifest persistedCopy = new Manifest(persisted);
+		Manifest copy = new Manifest(manifest);
+		persistedCopy.getMainAttributes()
+			.remove(new Attributes.Name(Analyzer.BND_LASTMODIFIED));
+		copy.getMainAttributes()
+			.remove(new Attributes.Name(Analyzer.BND_LASTMODIFIED));
+		return persistedCopy.equals(copy);
+	}
+
+	/**
+	 * @return true if the archive file contains the entries and the
+	 *         manifest as they are in memory
+	 */
+	private boolean isSaved() throws IOException
+	{
+		PersistedArchive persisted = persistedArchive;
+		if (persisted == null
+			|| persisted.modificationCount != virtualJarManager
+				.modificationCount()
+			|| persisted.generateManifest != generateManifest
+			|| !persisted.isMemoryManifest(virtualJarManager.manifest())
+			|| jarFile.length() != persisted.length)
+		{
+			return false;
+		}
+		int skipped = 0;
+		if (generateManifest)
+		{
+			if (persisted.records.isEmpty() || !JarFile.MANIFEST_NAME
+				.equals(persisted.records.get(0).getName()))
+			{
+				return false;
+			}
+			skipped = 1;
+		}
+		List<Entry<JarEntry, BytesWrapper>> entries = entriesToWrite(
+			generateManifest ? virtualJarManager.manifest() : null);
+		return entries.size() == persisted.records.size() - skipped
+			&& containsEntries(persisted, entries, skipped);
+	}
+
+	private boolean isUnchangedArchiveContent(BytesWrapper content)
+	{
+		return content instanceof ArchiveEntryBytesWrapper
+			&& ((ArchiveEntryBytesWrapper) content).isUnchanged();
+	}
+
+	/**
+	 * @param message
+	 * @param ex
+	 */
+	private void logWarn(String message, IOException ex)
+	{
+		logger.warn(message, ex);
+	}
+
+	/**
+	 * Fingerprint of everything bnd calculates the manifest from: name of
+	 * the archive, the analyzer properties (except for the time of the
+	 * previous calculation), names of the entries and content of the
+	 * classes (by CRC and size).
+	 *
+	 * @return SHA-256 of the analyzed archive, in hexadecimal
+	 */
+	private String manifestKey(Analyzer analyzer) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IOException(ex.getMessage(), ex);
+		}
+		DataOutputStream data = new DataOutputStream(
+			new DigestOutputStream(new NullOutputStream(), digest));
+		String name = analyzer.getJar().getName();
+		data.writeInt(name.length());
+		data.writeChars(name);
+		Properties properties = analyzer.getProperties();
+		for (String property : new TreeSet<String>(
+			properties.stringPropertyNames()))
+		{
+			if (!Analyzer.BND_LASTMODIFIED.equals(property))
+			{
+				String value = properties.getProperty(property);
+				data.writeInt(property.length());
+				data.writeChars(property);
+				data.writeInt(value.length());
+				data.writeChars(value);
+			}
+		}
+		for (Entry<JarEntry, BytesWrapper> entryWithContent : virtualJarManager
+			.storedEntries())
+		{
+			JarEntry entry = entryWithContent.getKey();
+			if (entry.isDirectory())
+			{
+				continue;
+			}
+			data.writeInt(entry.getName().length());
+			data.writeChars(entry.getName());
+			BytesWrapper content = entryWithContent.getValue();
+			if (content != null && entry.getName().endsWith(
+				JarManagerUtils.JAVA_CLASS_FILE_EXTENSION))
+			{
+				data.writeLong(content.crc());
+				data.writeLong(content.length());
+			}
+		}
+		data.close();
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			key.append(String.format("%02x", b & 0xFF));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Adds entries of the archive. Unless it's opened in lazy mode, their
+	 * content is read right away, so a damaged archive is found when the
+	 * manager is created.
+	 */
+	private void readArchiveEntries(boolean lazy) throws IOException,
+		ArchiveModificationException, EntryDuplicatedException
+	{
+		for (ZipEntryRecord record : archiveSource.records())
+		{
+			JarEntry entry = record.toJarEntry();
+			if (entry.isDirectory())
+			{
+				addEntry(entry);
+				continue;
+			}
+			ArchiveEntryBytesWrapper content = new ArchiveEntryBytesWrapper(
+				archiveSource, record);
+			if (!lazy)
+			{
+				content.load();
+			}
+			addContent(entry, content);
+		}
+	}
+
+	/**
+	 * Binds unchanged content read from the current source to the new
+	 * source of the archive file, which contains the same entries, and
+	 * releases the current source.
+	 */
+	private void rebindArchiveEntries(ArchiveSource source)
+		throws IOException
+	{
+		ArchiveSource previous = archiveSource;
+		archiveSource = source;
+		try
+		{
+			for (Entry<JarEntry, BytesWrapper> entry : virtualJarManager
+				.storedEntries())
+			{
+				if (!(entry.getValue() instanceof ArchiveEntryBytesWrapper))
+				{
+					continue;
+				}
+				ArchiveEntryBytesWrapper content = (ArchiveEntryBytesWrapper) entry
+					.getValue();
+				if (content.isReadFrom(previous)
+					&& content.isUnchanged())
+				{
+					virtualJarManager.replaceContent(entry,
+						content.rebind(source, source.record(
+							entry.getKey().getName())));
+				}
+			}
+		}
+		finally
+		{
+			previous.release();
+		}
+	}
+
+	/**
+	 * Replaces archive file with the new one. Archive opened in lazy mode
+	 * is reopened, so content which hasn't been read yet is read from the
+	 * new file (it contains the same entries). When the archive is shared
+	 * with a snapshot, the replaced file stays opened for the snapshot and
+	 * the new file is opened by a new source.
+	 */
+	private void replaceArchive(File newArchive) throws IOException
+	{
+		boolean reopen = archiveSource != null
+			&& archiveSource.getFile().getAbsoluteFile()
+				.equals(jarFile.getAbsoluteFile());
+		if (reopen && archiveSource.isShared())
+		{
+			Files.move(newArchive.toPath(), jarFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+			rebindArchiveEntries(ArchiveSource.open(jarFile));
+			return;
+		}
+		if (reopen)
+		{
+			archiveSource.close();
+		}
+		try
+		{
+			Files.move(newArchive.toPath(), jarFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			if (reopen)
+			{
+				archiveSource.open();
+			}
+		}
+	}
+
+	/**
+	 * Archive is written to a temporary file first, so content of the
+	 * entries not read yet (lazy mode) is still available while saving.
+	 */
+	private void saveVirtualArchiveToDisk(Manifest manifest)
+		throws IOException
+	{
+		File tempFile = createTempArchiveFile();
+		ZipArchiveWriter writer = null;
+		try
+		{
+			writer = new ZipArchiveWriter(
+				new FileOutputStream(tempFile));
+			if (manifest != null)
+			{
+				writer.putManifest(manifest);
+			}
+			List<Entry<JarEntry, BytesWrapper>> entries = entriesToWrite(
+				manifest);
+			writeEntries(writer, entries);
+			writer.close();
+			replaceArchive(tempFile);
+			persistedArchive = new PersistedArchive(writer.records(),
+				writer.centralDirectoryOffset(), jarFile.length(),
+				manifest);
+			persistedArchive.addWrittenContent(entries);
+		}
+		finally
+		{
+			closeWriterFinally(writer);
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+	/**
+	 * @return compression task, or null when content is copied as it is or
+	 *         streamed while being written
+	 */
+	private Future<CompressedContent> submitCompression(
+		final Entry<JarEntry, BytesWrapper> entry, CompressionCache cache)
+	{
+		BytesWrapper content = entry.getValue();
+		if (isUnchangedArchiveContent(content) || content != null
+			&& !entry.getKey().isDirectory() && !content.isInMemory())
+		{
+			return null;
+		}
+		Future<CompressedContent> shared = cache != null ? cache.compress(
+			entry.getKey(), content, executor) : null;
+		if (shared != null)
 		{
-			jarOS.putNextEntry(entryWithContent.getKey());
-			if (entryWithContent.getValue() != null)
+			return shared;
+		}
+		final Integer cachedLevel = cache != null ? cache
+			.compressionLevel(entry.getKey()) : null;
+		final CompressionPolicy policy = compressionPolicy;
+		return executor.submit(new Callable<CompressedContent>()
+		{
+			@Override
+			public CompressedContent call()
 			{
-				jarOS.write(
-					entryWithContent.getValue().getBytes());
+				int level = cachedLevel != null ? cachedLevel
+					: ZipArchiveWriter.compressionLevel(
+						entry.getKey(), entry.getValue(),
+						policy);
+				return ZipArchiveWriter.compress(entry.getKey(),
+					entry.getValue(), level);
 			}
-			jarOS.closeEntry();
+		});
+	}
+
+	/**
+	 * Runs the task by the given executor, or by the shared one if it's
+	 * null.
+	 */
+	private Future<Void> submitAsync(ExecutorService asyncExecutor,
+		Callable<Void> task)
+	{
+		return (asyncExecutor != null ? asyncExecutor : ASYNC_EXECUTOR)
+			.submit(task);
+	}
+
+	private Future<Void> submitEntryWrite(final Path dir,
+		final Entry<JarEntry, BytesWrapper> entry)
+	{
+		return executor.submit(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws IOException
+			{
+				writeEntryContent(dir, entry);
+				return null;
+			}
+		});
+	}
+
+	private void throwCannotExtractArchiveException(Throwable ex)
+		throws CannotExtractArchiveException
+	{
+		throw new CannotExtractArchiveException(String.format(
+			"Cannot extract archive. Reason: %s", ex.toString()), ex);
+	}
+
+	private void writeEntries(ZipArchiveWriter writer,
+		List<Entry<JarEntry, BytesWrapper>> entries) throws IOException
+	{
+		writer.setCompressionPolicy(compressionPolicy);
+		CompressionCache cache = compressIdenticalContentOnce ? new CompressionCache(
+			entries, compressionPolicy) : null;
+		if (executor != null)
+		{
+			writeEntriesInParallel(writer, entries, cache);
+		}
+		else
+		{
+			for (Entry<JarEntry, BytesWrapper> entryWithContent : entries)
+			{
+				writeEntry(writer, entryWithContent.getKey(),
+					entryWithContent.getValue(), cache);
+			}
+		}
+	}
+
+	/**
+	 * Compresses entries using the executor. At most
+	 * {@link #PARALLEL_SAVE_WINDOW} entries are compressed ahead of the one
+	 * being written, so compressed content doesn't pile up in memory.
+	 */
+	private void writeEntriesInParallel(ZipArchiveWriter writer,
+		List<Entry<JarEntry, BytesWrapper>> entries, CompressionCache cache)
+		throws IOException
+	{
+		List<Future<CompressedContent>> compressed = new ArrayList<Future<CompressedContent>>(
+			Collections.<Future<CompressedContent>> nCopies(
+				entries.size(), null));
+		int submitted = 0;
+		try
+		{
+			for (int i = 0; i < entries.size(); i++)
+			{
+				for (; submitted < entries.size() && submitted
+					- i < PARALLEL_SAVE_WINDOW; submitted++)
+				{
+					compressed.set(submitted,
+						submitCompression(entries
+							.get(submitted), cache));
+				}
+				Entry<JarEntry, BytesWrapper> entry = entries
+					.get(i);
+				Future<CompressedContent> content = compressed
+					.set(i, null);
+				if (content == null)
+				{
+					writeEntry(writer, entry.getKey(),
+						entry.getValue(), null);
+				}
+				else
+				{
+					writer.putCompressedEntry(
+						entry.getKey(),
+						getCompressedContent(content));
+				}
+			}
+		}
+		finally
+		{
+			for (Future<CompressedContent> content : compressed)
+			{
+				if (content != null)
+				{
+					content.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Content which hasn't changed since it was read from an archive is
+	 * copied as it is (compressed), other content is deflated. Content
+	 * shared with other entries is deflated only once if the cache is given,
+	 * other content is deflated with the level chosen by the cache.
+	 */
+	private void writeEntry(ZipArchiveWriter writer, JarEntry entry,
+		BytesWrapper content, CompressionCache cache) throws IOException
+	{
+		Future<CompressedContent> shared = cache != null ? cache.compress(
+			entry, content, null) : null;
+		if (isUnchangedArchiveContent(content))
+		{
+			writeRawEntry(writer, entry,
+				(ArchiveEntryBytesWrapper) content);
+		}
+		else if (shared != null)
+		{
+			writer.putCompressedEntry(entry,
+				getCompressedContent(shared));
+		}
+		else
+		{
+			Integer level = cache != null ? cache.compressionLevel(entry)
+				: null;
+			if (level != null)
+			{
+				writer.putEntry(entry, content, level);
+			}
+			else
+			{
+				writer.putEntry(entry, content);
+			}
+		}
+	}
+
+	private void writeEntryContent(Path dir,
+		Entry<JarEntry, BytesWrapper> entry) throws IOException
+	{
+		Path entryAsPath = JarManagerUtils
+			.convertEntryToRelativePath(entry.getKey());
+		FileChannel channel = FileChannel.open(dir.resolve(entryAsPath),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			entry.getValue().transferTo(channel);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private void writeRawEntry(ZipArchiveWriter writer, JarEntry entry,
+		ArchiveEntryBytesWrapper content) throws IOException
+	{
+		InputStream raw = content.openRawStream();
+		try
+		{
+			writer.putRawEntry(entry, content.record(), raw);
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+
+	/**
+	 * Entries of the archive file as it's on disk.
+	 */
+	private static class PersistedArchive
+	{
+
+		/**
+		 * Content written from wrappers other than the ones reading
+		 * entries of an archive, by entry name.
+		 */
+		private final Map<String, BytesWrapper> content;
+
+		/**
+		 * Offset of the central directory.
+		 */
+		private final long end;
+
+		/**
+		 * Generate manifest flag of the manager when the archive was
+		 * saved.
+		 */
+		private boolean generateManifest;
+
+		private final long length;
+
+		private final Manifest manifest;
+
+		/**
+		 * Copy of the manifest of the manager when the archive was
+		 * opened or saved, so changes made directly to the manifest are
+		 * detected, though they aren't counted as modifications.
+		 */
+		private Manifest memoryManifest;
+
+		/**
+		 * Modification count of the virtual archive when the archive
+		 * was opened or saved, -1 if it's unknown.
+		 */
+		private long modificationCount = -1;
+
+		private final List<ZipEntryRecord> records;
+
+		PersistedArchive(List<ZipEntryRecord> records, long end,
+			long length, Manifest manifest)
+		{
+			this.records = new ArrayList<ZipEntryRecord>(records);
+			this.end = end;
+			this.length = length;
+			this.manifest = manifest != null ? new Manifest(manifest)
+				: null;
+			content = new HashMap<String, BytesWrapper>();
+		}
+
+		void addWrittenContent(
+			List<Entry<JarEntry, BytesWrapper>> entries)
+		{
+			for (Entry<JarEntry, BytesWrapper> entry : entries)
+			{
+				if (entry.getValue() != null && !(entry
+					.getValue() instanceof ArchiveEntryBytesWrapper))
+				{
+					content.put(entry.getKey().getName(),
+						entry.getValue());
+				}
+			}
+		}
+
+		/**
+		 * @return true if the manifest is the same as the manifest of
+		 *         the manager when the archive was opened or saved
+		 */
+		boolean isMemoryManifest(Manifest manifest)
+		{
+			return manifest == null ? memoryManifest == null
+				: manifest.equals(memoryManifest);
+		}
+
+		void setMemoryManifest(Manifest manifest)
+		{
+			memoryManifest = manifest != null ? new Manifest(manifest)
+				: null;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * {@link BytesWrapper} backed by a region of a file (the whole file by
+ * default). The content is read from the file whenever it's needed, so it's
+ * never kept in memory and it can be larger than 2 GB. When archive is
+ * extracted the content is transferred from the file without copying it to
+ * the heap.
+ * <p>
+ * {@link #getBytes()} reads the content into a new array each time (it fails
+ * for regions larger than 2 GB), so modifying the returned array doesn't
+ * modify the content. Use {@link #setBytes(byte[])} to replace the content
+ * with an array.
+ *
+ * @author goobar
+ */
+public class FileRegionBytesWrapper extends BytesWrapper
+{
+
+	private final File file;
+
+	private final long length;
+
+	private final long offset;
+
+	private boolean replaced;
+
+	/**
+	 * Creates wrapper of the whole file.
+	 *
+	 * @param file
+	 *                the file
+	 */
+	public FileRegionBytesWrapper(File file)
+	{
+		this(file, 0, file.length());
+	}
+
+	/**
+	 * Creates wrapper of the file region.
+	 *
+	 * @param file
+	 *                the file
+	 * @param offset
+	 *                start of the region
+	 * @param length
+	 *                length of the region
+	 */
+	public FileRegionBytesWrapper(File file, long offset, long length)
+	{
+		super(null);
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Reads the content into a new array.
+	 *
+	 * @throws IllegalStateException
+	 *                 thrown when the content cannot be read or it's too
+	 *                 large to fit in an array
+	 */
+	@Override
+	public synchronized byte[] getBytes()
+	{
+		if (replaced)
+		{
+			return super.getBytes();
+		}
+		if (length > MAX_ARRAY_LENGTH)
+		{
+			throw new IllegalStateException(String.format(
+				"Region of file %s is too large to be read into an array",
+				file));
+		}
+		try
+		{
+			FileChannel channel = openChannel();
+			try
+			{
+				ByteBuffer bytes = ByteBuffer.allocate((int) length);
+				while (bytes.hasRemaining())
+				{
+					if (channel.read(bytes, offset
+						+ bytes.position()) < 0)
+					{
+						throw new EOFException(String.format(
+							"Unexpected end of file %s",
+							file));
+					}
+				}
+				return bytes.array();
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(String.format(
+				"Cannot read file %s. Reason: %s", file,
+				ex.toString()), ex);
+		}
+	}
+
+	/**
+	 * @return the file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return start of the region
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	@Override
+	public synchronized long length()
+	{
+		return replaced ? super.length() : length;
+	}
+
+	@Override
+	public synchronized InputStream openStream() throws IOException
+	{
+		if (replaced)
+		{
+			return super.openStream();
+		}
+		return new FileRegionInputStream(openChannel(), offset, length,
+			true);
+	}
+
+	@Override
+	public synchronized void setBytes(byte[] bytes)
+	{
+		replaced = true;
+		super.setBytes(bytes);
+	}
+
+	@Override
+	synchronized BytesWrapper copy()
+	{
+		FileRegionBytesWrapper copy = new FileRegionBytesWrapper(file,
+			offset, length);
+		if (replaced)
+		{
+			copy.setBytes(super.getBytes());
+		}
+		return copy;
+	}
+
+	@Override
+	synchronized boolean isInMemory()
+	{
+		return replaced;
+	}
+
+	@Override
+	synchronized void transferTo(FileChannel channel) throws IOException
+	{
+		if (replaced)
+		{
+			super.transferTo(channel);
+			return;
+		}
+		FileChannel source = openChannel();
+		try
+		{
+			long transferred = 0;
+			while (transferred < length)
+			{
+				long count = source.transferTo(
+					offset + transferred,
+					length - transferred, channel);
+				if (count <= 0 && offset + transferred >= source
+					.size())
+				{
+					throw new EOFException(String.format(
+						"Unexpected end of file %s",
+						file));
+				}
+				transferred += count;
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	@Override
+	synchronized void writeTo(OutputStream os) throws IOException
+	{
+		if (replaced)
+		{
+			super.writeTo(os);
+			return;
+		}
+		InputStream is = openStream();
+		try
+		{
+			IOUtils.copyLarge(is, os);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private FileChannel openChannel() throws IOException
+	{
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region of a file using positional reads, so several regions of the
+ * same file can be read at the same time.
+ *
+ * @author goobar
+ */
+class FileRegionInputStream extends InputStream
+{
+
+	private final FileChannel channel;
+
+	private final boolean closeChannel;
+
+	private final long end;
+
+	private long position;
+
+	/**
+	 * @param channel
+	 *                channel of the file
+	 * @param position
+	 *                start of the region
+	 * @param length
+	 *                length of the region
+	 * @param closeChannel
+	 *                if true the channel is closed when the stream is
+	 *                closed
+	 */
+	FileRegionInputStream(FileChannel channel, long position, long length,
+		boolean closeChannel)
+	{
+		this.channel = channel;
+		this.position = position;
+		this.closeChannel = closeChannel;
+		end = position + length;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closeChannel)
+		{
+			channel.close();
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (position >= end)
+		{
+			return -1;
+		}
+		int toRead = (int) Math.min(len, end - position);
+		int read = channel.read(ByteBuffer.wrap(b, off, toRead),
+			position);
+		if (read < 0)
+		{
+			throw new EOFException("Unexpected end of file");
+		}
+		position += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+}
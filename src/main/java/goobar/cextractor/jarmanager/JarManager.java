@@ -6,7 +6,9 @@ package goobar.cextractor.jarmanager;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -64,6 +66,25 @@ public interface JarManager
 	public void addDirectory(Path dir)
 		throws ArchiveModificationException, EntryDuplicatedException;
 
+	/**
+	 * Adds entries with their content (null for directory entries) at
+	 * once. All the entries are validated the same way as by
+	 * {@link #addEntry(JarEntry)} and
+	 * {@link #addContent(JarEntry, BytesWrapper)} before any of them is
+	 * added, so either all of them are added or none.
+	 *
+	 * @param entries
+	 *                entries with their content, added in iteration order
+	 * @throws ArchiveModificationException
+	 *                 thrown when a directory entry has content or an entry
+	 *                 which isn't a directory has none
+	 * @throws EntryDuplicatedException
+	 *                 thrown when an entry is already in the archive or
+	 *                 it's given more than once
+	 */
+	public void addEntries(Collection<Entry<JarEntry, BytesWrapper>> entries)
+		throws ArchiveModificationException, EntryDuplicatedException;
+
 	/**
 	 * Adds entry without content.
 	 *
@@ -128,6 +149,37 @@ public interface JarManager
 	public void addPropertiesToManifest(Map<String, String> properties)
 		throws ArchiveModificationException;
 
+	/**
+	 * Adds an entry with content read from the stream. The stream is read
+	 * to the end but it isn't closed. Large content is buffered in a
+	 * temporary file instead of memory.
+	 *
+	 * @param entry
+	 *                Content will be added to this entry.
+	 * @param content
+	 *                Stream of the content.
+	 * @throws ArchiveModificationException
+	 *                 Thrown also when the stream cannot be read.
+	 * @throws EntryDuplicatedException
+	 */
+	public void addStreamContent(JarEntry entry, InputStream content)
+		throws ArchiveModificationException, EntryDuplicatedException;
+
+	/**
+	 * Adds an entry whose content is read from the supplier only when it's
+	 * needed (e.g. when archive is saved), so it's never kept in memory.
+	 *
+	 * @param entry
+	 *                Content will be added to this entry.
+	 * @param content
+	 *                Supplier of the content.
+	 * @throws ArchiveModificationException
+	 * @throws EntryDuplicatedException
+	 * @see ContentSupplier
+	 */
+	public void addSuppliedContent(JarEntry entry, ContentSupplier content)
+		throws ArchiveModificationException, EntryDuplicatedException;
+
 	/**
 	 * Returns all entries in archive.
 	 *
@@ -154,6 +206,22 @@ public interface JarManager
 	 */
 	public void extract(Path dir) throws CannotExtractArchiveException;
 
+	/**
+	 * Returns entries directly in the directory, i.e. its files and
+	 * subdirectories but not their content. Only entries which are in the
+	 * archive are returned (a subdirectory without its own entry isn't).
+	 * It takes time proportional to the number of the entries returned,
+	 * not the archive size.
+	 *
+	 * @param directoryName
+	 *                Name of the directory, with or without trailing
+	 *                slash. Empty name stands for the root of archive.
+	 * @return Entries sorted by their names, with their content.
+	 * @throws ArchiveReadException
+	 */
+	public List<Entry<JarEntry, BytesWrapper>> findChildren(
+		String directoryName) throws ArchiveReadException;
+
 	/**
 	 * Returns entry by given name.
 	 *
@@ -167,6 +235,20 @@ public interface JarManager
 	public Entry<JarEntry, BytesWrapper> findEntryByName(String entryName)
 		throws ArchiveReadException;
 
+	/**
+	 * Returns entries whose names start with the prefix, e.g. a directory
+	 * (the prefix ending with slash) and all its content. It takes time
+	 * proportional to the number of the entries returned, not the archive
+	 * size.
+	 *
+	 * @param prefix
+	 *                Prefix of the names.
+	 * @return Entries sorted by their names, with their content.
+	 * @throws ArchiveReadException
+	 */
+	public List<Entry<JarEntry, BytesWrapper>> findSubtree(String prefix)
+		throws ArchiveReadException;
+
 	/**
 	 * Sets manifest generation flag.
 	 *
@@ -182,6 +264,20 @@ public interface JarManager
 	 */
 	public Manifest manifest();
 
+	/**
+	 * Opens content of the entry as a stream. Content is read as the
+	 * stream is read, whenever the implementation allows it.
+	 *
+	 * @param entryName
+	 *                Name of the entry.
+	 * @return Stream of the content (to be closed by the caller), or null
+	 *         if entry doesn't exist or doesn't have content.
+	 * @throws ArchiveReadException
+	 *                 Thrown when content cannot be read.
+	 */
+	public InputStream openEntryStream(String entryName)
+		throws ArchiveReadException;
+
 	/**
 	 * Removes given entry.
 	 *
@@ -202,6 +298,17 @@ public interface JarManager
 	public void removeEntry(String entryName)
 		throws ArchiveModificationException;
 
+	/**
+	 * Removes entries whose names start with the prefix, see
+	 * {@link #findSubtree(String)}.
+	 *
+	 * @param prefix
+	 *                Prefix of the names.
+	 * @throws ArchiveModificationException
+	 */
+	public void removeSubtree(String prefix)
+		throws ArchiveModificationException;
+
 	/**
 	 * Saves archive. Behaviour depends on implementation. The archive can
 	 * be saved to disk, persisted to database etc.
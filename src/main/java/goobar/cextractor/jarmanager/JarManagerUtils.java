@@ -6,6 +6,10 @@ package goobar.cextractor.jarmanager;
 
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.jar.JarEntry;
 
 /**
@@ -56,6 +60,46 @@ public class JarManagerUtils
 		return entry;
 	}
 
+	/**
+	 * Finds entries directly in the directory. Subtrees of its
+	 * subdirectories are skipped, so it takes time proportional to the
+	 * number of the children (and their subdirectories), not the number of
+	 * the entries.
+	 *
+	 * @param entries
+	 *                entries sorted by their names
+	 * @param directoryName
+	 *                name of the directory, with or without
+	 *                {@link #ENTRY_DIRECTORY_SUFFIX}, empty for the root
+	 * @return the children sorted by their names
+	 */
+	static <V> List<V> children(NavigableMap<String, V> entries,
+		String directoryName)
+	{
+		String directory = directoryName.isEmpty()
+			|| directoryName.endsWith(ENTRY_DIRECTORY_SUFFIX)
+				? directoryName
+				: directoryName + ENTRY_DIRECTORY_SUFFIX;
+		List<V> children = new ArrayList<V>();
+		Map.Entry<String, V> entry = entries.higherEntry(directory);
+		while (entry != null && entry.getKey().startsWith(directory))
+		{
+			String name = entry.getKey();
+			int separator = name.indexOf(ENTRY_DIRECTORY_SUFFIX,
+				directory.length());
+			if (separator < 0 || separator == name.length() - 1)
+			{
+				children.add(entry.getValue());
+			}
+			// '0' follows '/', so names starting with the subdirectory
+			// are skipped
+			entry = separator < 0 ? entries.higherEntry(name)
+				: entries.ceilingEntry(
+					name.substring(0, separator) + '0');
+		}
+		return children;
+	}
+
 	static Path convertEntryToRelativePath(JarEntry entry)
 	{
 		Path result = FileSystems.getDefault().getPath("");
@@ -67,4 +111,30 @@ public class JarManagerUtils
 		}
 		return result;
 	}
+
+	/**
+	 * Finds entries whose names start with the prefix. It takes time
+	 * proportional to the number of the entries found.
+	 *
+	 * @param entries
+	 *                entries sorted by their names
+	 * @param prefix
+	 *                prefix of the names, e.g. name of a directory
+	 * @return the entries sorted by their names
+	 */
+	static <V> List<V> subtree(NavigableMap<String, V> entries,
+		String prefix)
+	{
+		List<V> subtree = new ArrayList<V>();
+		for (Map.Entry<String, V> entry : entries.tailMap(prefix, true)
+			.entrySet())
+		{
+			if (!entry.getKey().startsWith(prefix))
+			{
+				break;
+			}
+			subtree.add(entry.getValue());
+		}
+		return subtree;
+	}
 }
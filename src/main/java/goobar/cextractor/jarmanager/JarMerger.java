@@ -0,0 +1,424 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges several jar archives into one, e.g. to build an uber-jar from
+ * dependencies. Archives are streamed: only their central directories are
+ * read and compressed content of the entries is copied to the merged archive
+ * as it is, without inflating and deflating it again. Only a few archives are
+ * opened at once, so memory used doesn't depend on the number or size of the
+ * merged archives, except for the names of the entries and the service
+ * provider configuration files merged by
+ * {@link DuplicateEntryPolicy#MERGE_SERVICES}.
+ * <p>
+ * The manifest of the first archive containing one is written first,
+ * preceded by the <code>META-INF/</code> directory, as {@link JarFile} and
+ * {@link java.util.jar.JarInputStream} expect. Other entries are written in
+ * the order of the archives (see {@link #addSource(File)}) and their order in
+ * each archive. Merged service provider configuration files are written
+ * last.
+ * <p>
+ * When an executor is set (see {@link #setExecutor(ExecutorService)}),
+ * archives are opened in parallel: their central directories are read up to
+ * {@value #PARALLEL_OPEN_WINDOW} archives ahead of the one being copied.
+ * Content of the entries is always copied sequentially.
+ *
+ * @author goobar
+ */
+public class JarMerger
+{
+
+	/**
+	 * Maximum number of archives opened ahead of the one being copied
+	 * when they're opened in parallel.
+	 */
+	private static final int PARALLEL_OPEN_WINDOW = 16;
+
+	private static final String META_INF_DIRECTORY = "META-INF/";
+
+	private static final String SERVICES_DIRECTORY = "META-INF/services/";
+
+	private static Logger logger = LoggerFactory.getLogger(JarMerger.class);
+
+	private DuplicateEntryPolicy duplicateEntryPolicy;
+
+	private ExecutorService executor;
+
+	private final List<File> sources;
+
+	/**
+	 * Creates merger without archives to merge. Duplicated entries are
+	 * skipped ({@link DuplicateEntryPolicy#FIRST_WINS}).
+	 */
+	public JarMerger()
+	{
+		sources = new ArrayList<File>();
+		duplicateEntryPolicy = DuplicateEntryPolicy.FIRST_WINS;
+	}
+
+	/**
+	 * Adds an archive to merge.
+	 *
+	 * @param jarFile
+	 *                the archive
+	 */
+	public void addSource(File jarFile)
+	{
+		sources.add(jarFile);
+	}
+
+	/**
+	 * Merges the archives. The merged archive is written to a temporary
+	 * file first, so the target file is replaced only when all archives
+	 * have been merged.
+	 *
+	 * @param targetFile
+	 *                file the merged archive is saved to
+	 * @throws ArchiveModificationException
+	 *                 thrown when an archive cannot be read or the merged
+	 *                 archive cannot be written
+	 * @throws EntryDuplicatedException
+	 *                 thrown when archives contain the same entry and the
+	 *                 policy is {@link DuplicateEntryPolicy#FAIL}
+	 */
+	public void merge(File targetFile)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		Deque<Future<ArchiveSource>> pendingSources = new ArrayDeque<Future<ArchiveSource>>();
+		File tempFile = null;
+		ZipArchiveWriter writer = null;
+		try
+		{
+			tempFile = File.createTempFile(targetFile.getName(), ".tmp",
+				targetFile.getAbsoluteFile().getParentFile());
+			writer = new ZipArchiveWriter(
+				new FileOutputStream(tempFile));
+			Set<String> names = new HashSet<String>();
+			Map<String, ByteArrayOutputStream> services = new LinkedHashMap<String, ByteArrayOutputStream>();
+			copyManifest(writer, names, pendingSources);
+			Iterator<File> files = sources
+				.listIterator(pendingSources.size());
+			while (files.hasNext() || !pendingSources.isEmpty())
+			{
+				while (files.hasNext() && (pendingSources.isEmpty()
+					|| executor != null && pendingSources
+						.size() < PARALLEL_OPEN_WINDOW))
+				{
+					pendingSources.add(submitOpen(files.next()));
+				}
+				ArchiveSource source = getSource(pendingSources.poll());
+				try
+				{
+					source.resume();
+					copyEntries(writer, source, names, services);
+				}
+				finally
+				{
+					source.close();
+				}
+			}
+			for (Entry<String, ByteArrayOutputStream> service : services
+				.entrySet())
+			{
+				writer.putEntry(new JarEntry(service.getKey()),
+					new BytesWrapper(
+						service.getValue().toByteArray()));
+			}
+			writer.close();
+			Files.move(tempFile.toPath(), targetFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException ex)
+		{
+			throw new ArchiveModificationException(String.format(
+				"Cannot merge archives into %s. Reason: %s",
+				targetFile, ex.toString()), ex);
+		}
+		finally
+		{
+			closePendingSources(pendingSources);
+			closeWriterFinally(writer);
+			deleteFinally(tempFile);
+		}
+	}
+
+	/**
+	 * @param duplicateEntryPolicy
+	 *                what is done with an entry which is already in the
+	 *                merged archive, {@link DuplicateEntryPolicy#FIRST_WINS}
+	 *                by default
+	 */
+	public void setDuplicateEntryPolicy(
+		DuplicateEntryPolicy duplicateEntryPolicy)
+	{
+		this.duplicateEntryPolicy = duplicateEntryPolicy;
+	}
+
+	/**
+	 * Sets executor used to open archives (read their central
+	 * directories) in parallel. At most {@value #PARALLEL_OPEN_WINDOW}
+	 * archives are opened ahead of the one being copied. Entries are
+	 * copied sequentially. The executor isn't shut down by this merger.
+	 *
+	 * @param executor
+	 *                the executor, or null to open archives sequentially
+	 *                (default)
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Appends content of the service provider configuration file, making
+	 * sure each file ends with a line separator.
+	 */
+	private void appendService(ArchiveSource source, String name,
+		Map<String, ByteArrayOutputStream> services) throws IOException
+	{
+		ByteArrayOutputStream content = services.get(name);
+		if (content == null)
+		{
+			content = new ByteArrayOutputStream();
+			services.put(name, content);
+		}
+		byte[] bytes = source.read(name);
+		content.write(bytes);
+		if (bytes.length > 0 && bytes[bytes.length - 1] != '\n')
+		{
+			content.write('\n');
+		}
+	}
+
+	private void closePendingSources(
+		Deque<Future<ArchiveSource>> pendingSources)
+	{
+		for (Future<ArchiveSource> pendingSource : pendingSources)
+		{
+			try
+			{
+				pendingSource.get().close();
+			}
+			catch (Exception ex)
+			{
+				logger.debug(ex.getMessage(), ex);
+			}
+		}
+		pendingSources.clear();
+	}
+
+	private void closeWriterFinally(ZipArchiveWriter writer)
+	{
+		if (writer == null)
+		{
+			return;
+		}
+		try
+		{
+			writer.close();
+		}
+		catch (IOException ex)
+		{
+			logger.warn(ex.getMessage(), ex);
+		}
+	}
+
+	private void copyEntries(ZipArchiveWriter writer, ArchiveSource source,
+		Set<String> names, Map<String, ByteArrayOutputStream> services)
+		throws IOException, EntryDuplicatedException
+	{
+		for (ZipEntryRecord record : source.records())
+		{
+			JarEntry entry = record.toJarEntry();
+			String name = entry.getName();
+			if (duplicateEntryPolicy == DuplicateEntryPolicy.MERGE_SERVICES
+				&& !entry.isDirectory()
+				&& name.startsWith(SERVICES_DIRECTORY))
+			{
+				appendService(source, name, services);
+				continue;
+			}
+			if (!names.add(name))
+			{
+				if (duplicateEntryPolicy == DuplicateEntryPolicy.FAIL
+					&& !entry.isDirectory()
+					&& !JarFile.MANIFEST_NAME.equals(name))
+				{
+					throw new EntryDuplicatedException(String.format(
+						"Entry %s of archive %s already exists in merged archive",
+						name, source.getFile()));
+				}
+				logger.debug("Skipping duplicated entry {} of archive {}",
+					name, source.getFile());
+				continue;
+			}
+			copyRawEntry(writer, source, record);
+		}
+	}
+
+	/**
+	 * Looks for the first archive containing a manifest and copies the
+	 * manifest with the <code>META-INF/</code> directory. Archives opened
+	 * while looking for it are kept for copying their entries, so they
+	 * aren't opened again. Only {@value #PARALLEL_OPEN_WINDOW} of them are
+	 * kept opened, the others are closed until they're copied, keeping
+	 * their central directories.
+	 */
+	private void copyManifest(ZipArchiveWriter writer, Set<String> names,
+		Deque<Future<ArchiveSource>> pendingSources) throws IOException
+	{
+		for (File file : sources)
+		{
+			Future<ArchiveSource> pendingSource = submitOpen(file);
+			pendingSources.add(pendingSource);
+			ArchiveSource source = getSource(pendingSource);
+			try
+			{
+				if (source.contains(JarFile.MANIFEST_NAME))
+				{
+					if (source.contains(META_INF_DIRECTORY))
+					{
+						copyRawEntry(writer, source,
+							source.record(META_INF_DIRECTORY));
+					}
+					else
+					{
+						writer.putEntry(
+							new JarEntry(META_INF_DIRECTORY),
+							null);
+					}
+					copyRawEntry(writer, source,
+						source.record(JarFile.MANIFEST_NAME));
+					names.add(META_INF_DIRECTORY);
+					names.add(JarFile.MANIFEST_NAME);
+					return;
+				}
+			}
+			finally
+			{
+				if (pendingSources.size() > PARALLEL_OPEN_WINDOW)
+				{
+					source.close();
+				}
+			}
+		}
+	}
+
+	private void copyRawEntry(ZipArchiveWriter writer, ArchiveSource source,
+		ZipEntryRecord record) throws IOException
+	{
+		InputStream raw = source.openRaw(record);
+		try
+		{
+			writer.putRawEntry(record.toJarEntry(), record, raw);
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+
+	private void deleteFinally(File file)
+	{
+		if (file == null)
+		{
+			return;
+		}
+		try
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+		catch (IOException ex)
+		{
+			logger.warn(ex.getMessage(), ex);
+		}
+	}
+
+	private ArchiveSource getSource(Future<ArchiveSource> pendingSource)
+		throws IOException
+	{
+		try
+		{
+			return pendingSource.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(ex.toString());
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof IOException)
+			{
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Opens the archive by the executor, or right away if there's no
+	 * executor.
+	 */
+	private Future<ArchiveSource> submitOpen(final File jarFile)
+	{
+		FutureTask<ArchiveSource> task = new FutureTask<ArchiveSource>(
+			new Callable<ArchiveSource>()
+			{
+				@Override
+				public ArchiveSource call() throws IOException
+				{
+					try
+					{
+						return ArchiveSource.open(jarFile);
+					}
+					catch (IOException ex)
+					{
+						throw new IOException(String.format(
+							"Cannot open archive %s. Reason: %s",
+							jarFile, ex.toString()), ex);
+					}
+				}
+			});
+		if (executor != null)
+		{
+			executor.execute(task);
+		}
+		else
+		{
+			task.run();
+		}
+		return task;
+	}
+}
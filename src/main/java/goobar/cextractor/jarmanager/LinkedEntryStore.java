@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+
+/**
+ * {@link EntryStore} based on {@link LinkedHashMap}, with a {@link TreeMap}
+ * index of the names. It isn't thread safe.
+ * <p>
+ * Snapshots share the maps with the store they've been created from until
+ * one of them is modified, which copies the maps (copy-on-write). Creating a
+ * snapshot doesn't depend on the number of entries.
+ *
+ * @author goobar
+ */
+class LinkedEntryStore implements EntryStore
+{
+
+	private Map<String, Entry<JarEntry, BytesWrapper>> entries;
+
+	/**
+	 * True if the maps may be shared with another store, so they're
+	 * copied before they're modified.
+	 */
+	private boolean shared;
+
+	private NavigableMap<String, Entry<JarEntry, BytesWrapper>> sortedEntries;
+
+	LinkedEntryStore()
+	{
+		entries = new LinkedHashMap<String, Entry<JarEntry, BytesWrapper>>();
+		sortedEntries = new TreeMap<String, Entry<JarEntry, BytesWrapper>>();
+	}
+
+	private LinkedEntryStore(
+		Map<String, Entry<JarEntry, BytesWrapper>> entries,
+		NavigableMap<String, Entry<JarEntry, BytesWrapper>> sortedEntries)
+	{
+		this.entries = entries;
+		this.sortedEntries = sortedEntries;
+		shared = true;
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> children(
+		String directoryName)
+	{
+		return JarManagerUtils.children(sortedEntries, directoryName);
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> entries()
+	{
+		return new ArrayList<Entry<JarEntry, BytesWrapper>>(
+			entries.values());
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> get(String name)
+	{
+		return entries.get(name);
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> putIfAbsent(
+		Entry<JarEntry, BytesWrapper> entry)
+	{
+		String name = entry.getKey().getName();
+		Entry<JarEntry, BytesWrapper> stored = entries.get(name);
+		if (stored == null)
+		{
+			copyIfShared();
+			entries.put(name, entry);
+			sortedEntries.put(name, entry);
+		}
+		return stored;
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> remove(JarEntry entry)
+	{
+		Entry<JarEntry, BytesWrapper> stored = entries
+			.get(entry.getName());
+		if (stored == null || stored.getKey() != entry)
+		{
+			return null;
+		}
+		return remove(entry.getName());
+	}
+
+	@Override
+	public Entry<JarEntry, BytesWrapper> remove(String name)
+	{
+		if (!entries.containsKey(name))
+		{
+			return null;
+		}
+		copyIfShared();
+		sortedEntries.remove(name);
+		return entries.remove(name);
+	}
+
+	@Override
+	public boolean replace(Entry<JarEntry, BytesWrapper> stored,
+		Entry<JarEntry, BytesWrapper> entry)
+	{
+		String name = stored.getKey().getName();
+		if (entries.get(name) != stored)
+		{
+			return false;
+		}
+		copyIfShared();
+		sortedEntries.put(name, entry);
+		entries.put(name, entry);
+		return true;
+	}
+
+	@Override
+	public int size()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public EntryStore snapshot()
+	{
+		shared = true;
+		return new LinkedEntryStore(entries, sortedEntries);
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> subtree(String prefix)
+	{
+		return JarManagerUtils.subtree(sortedEntries, prefix);
+	}
+
+	private void copyIfShared()
+	{
+		if (shared)
+		{
+			entries = new LinkedHashMap<String, Entry<JarEntry, BytesWrapper>>(
+				entries);
+			sortedEntries = new TreeMap<String, Entry<JarEntry, BytesWrapper>>(
+				sortedEntries);
+			shared = false;
+		}
+	}
+}
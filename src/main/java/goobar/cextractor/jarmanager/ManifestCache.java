@@ -0,0 +1,242 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Manifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of manifests calculated by bnd, keyed by a fingerprint of the
+ * analyzed archive (see {@link FileJarManager#setManifestCache(ManifestCache)}).
+ * At most the given number of manifests is kept in memory, the least recently
+ * used ones are dropped. Manifests can be also kept in a directory, so they're
+ * reused by other processes (e.g. next builds); the directory is limited to
+ * the same number of the least recently used manifests.
+ * <p>
+ * The cache can be shared by several managers, it's thread safe.
+ *
+ * @author goobar
+ */
+public class ManifestCache
+{
+
+	private static final String FILE_EXTENSION = ".mf";
+
+	private static Logger logger = LoggerFactory
+		.getLogger(ManifestCache.class);
+
+	private final File directory;
+
+	private final Map<String, Manifest> manifests;
+
+	private final int maxSize;
+
+	/**
+	 * Creates cache keeping manifests in memory only.
+	 *
+	 * @param maxSize
+	 *                maximum number of cached manifests
+	 */
+	public ManifestCache(int maxSize)
+	{
+		this(maxSize, null);
+	}
+
+	/**
+	 * @param maxSize
+	 *                maximum number of cached manifests
+	 * @param directory
+	 *                directory where manifests are kept, created if it
+	 *                doesn't exist, or null to keep manifests in memory
+	 *                only
+	 * @throws IllegalArgumentException
+	 *                 thrown when maximum size isn't positive
+	 */
+	public ManifestCache(final int maxSize, File directory)
+	{
+		if (maxSize <= 0)
+		{
+			throw new IllegalArgumentException(String.format(
+				"Cache size has to be positive: %d", maxSize));
+		}
+		this.maxSize = maxSize;
+		this.directory = directory;
+		manifests = new LinkedHashMap<String, Manifest>(16, 0.75f, true)
+		{
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<String, Manifest> eldest)
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 *                fingerprint of the analyzed archive
+	 * @return copy of the cached manifest, or null if it isn't cached
+	 */
+	public synchronized Manifest get(String key)
+	{
+		Manifest manifest = manifests.get(key);
+		if (manifest == null && directory != null)
+		{
+			manifest = readFile(key);
+			if (manifest != null)
+			{
+				manifests.put(key, manifest);
+			}
+		}
+		return manifest != null ? new Manifest(manifest) : null;
+	}
+
+	/**
+	 * Caches copy of the manifest. A failure to write it to the directory
+	 * is only logged.
+	 *
+	 * @param key
+	 *                fingerprint of the analyzed archive
+	 * @param manifest
+	 *                manifest calculated for the archive
+	 */
+	public synchronized void put(String key, Manifest manifest)
+	{
+		manifests.put(key, new Manifest(manifest));
+		if (directory != null)
+		{
+			writeFile(key, manifest);
+		}
+	}
+
+	private File file(String key)
+	{
+		return new File(directory, key + FILE_EXTENSION);
+	}
+
+	/**
+	 * Deletes the least recently used manifests exceeding the maximum
+	 * size.
+	 */
+	private void pruneDirectory()
+	{
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(FILE_EXTENSION);
+			}
+		});
+		if (files == null || files.length <= maxSize)
+		{
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File first, File second)
+			{
+				long diff = second.lastModified() - first.lastModified();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		for (int i = maxSize; i < files.length; i++)
+		{
+			if (!files[i].delete())
+			{
+				logger.debug("Cannot delete cached manifest {}",
+					files[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return manifest read from the directory, null if it isn't there or
+	 *         it cannot be read
+	 */
+	private Manifest readFile(String key)
+	{
+		File file = file(key);
+		if (!file.isFile())
+		{
+			return null;
+		}
+		try
+		{
+			InputStream is = new FileInputStream(file);
+			try
+			{
+				Manifest manifest = new Manifest(is);
+				// the least recently used manifests are pruned
+				file.setLastModified(System.currentTimeMillis());
+				return manifest;
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			logger.warn(String.format(
+				"Cannot read cached manifest %s", file), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Manifest is written to a temporary file first, so other processes
+	 * never read a partially written manifest.
+	 */
+	private void writeFile(String key, Manifest manifest)
+	{
+		File tempFile = null;
+		try
+		{
+			Files.createDirectories(directory.toPath());
+			tempFile = File.createTempFile(key, ".tmp", directory);
+			OutputStream os = new FileOutputStream(tempFile);
+			try
+			{
+				manifest.write(os);
+			}
+			finally
+			{
+				os.close();
+			}
+			Files.move(tempFile.toPath(), file(key).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			pruneDirectory();
+		}
+		catch (IOException ex)
+		{
+			logger.warn(String.format(
+				"Cannot write cached manifest %s", file(key)), ex);
+			if (tempFile != null && !tempFile.delete())
+			{
+				tempFile.deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.zip.Deflater;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * {@link CompressionPolicy} storing content which is already compressed, as
+ * deflating it again takes time and hardly makes it smaller. Content is
+ * considered compressed if the entry has an extension of a compressed format
+ * (images, archives, audio, video, fonts) or if a sample of the content
+ * doesn't shrink when it's deflated. Other content is deflated with the given
+ * level.
+ *
+ * @author goobar
+ */
+public class SkipCompressedContentPolicy implements CompressionPolicy
+{
+
+	/**
+	 * Extensions of formats which are compressed.
+	 */
+	private static final Set<String> COMPRESSED_EXTENSIONS = Collections
+		.unmodifiableSet(new HashSet<String>(Arrays.asList("7z",
+			"aar", "apk", "bz2", "ear", "gif", "gz", "jar",
+			"jpeg", "jpg", "mp3", "mp4", "ogg", "png", "rar",
+			"tgz", "war", "webp", "woff", "woff2", "xz", "zip")));
+
+	/**
+	 * Content whose sample is deflated to more than this part of its
+	 * length is stored.
+	 */
+	private static final double MAX_COMPRESSED_RATIO = 0.95;
+
+	/**
+	 * Content shorter than this isn't sampled, as deflating all of it is
+	 * cheap.
+	 */
+	private static final int MIN_SAMPLED_LENGTH = 4 * 1024;
+
+	/**
+	 * Length of the sample from the beginning of the content.
+	 */
+	private static final int SAMPLE_LENGTH = 64 * 1024;
+
+	private final int level;
+
+	/**
+	 * Creates policy deflating compressible content with the default
+	 * level.
+	 */
+	public SkipCompressedContentPolicy()
+	{
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *                {@link Deflater} level of compressible content
+	 */
+	public SkipCompressedContentPolicy(int level)
+	{
+		if (level != Deflater.DEFAULT_COMPRESSION
+			&& (level < Deflater.NO_COMPRESSION
+				|| level > Deflater.BEST_COMPRESSION))
+		{
+			throw new IllegalArgumentException(String.format(
+				"Invalid compression level %d", level));
+		}
+		this.level = level;
+	}
+
+	@Override
+	public int compressionLevel(JarEntry entry, BytesWrapper content)
+	{
+		if (COMPRESSED_EXTENSIONS.contains(extension(entry.getName()))
+			|| isIncompressible(content))
+		{
+			return STORE;
+		}
+		return level;
+	}
+
+	private String extension(String name)
+	{
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || dot < name.lastIndexOf('/'))
+		{
+			return "";
+		}
+		return name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Deflates a sample of the content with the fastest level. If the
+	 * sample cannot be read, the content is deflated as usual (and the
+	 * error is reported when it's written).
+	 */
+	private boolean isIncompressible(BytesWrapper content)
+	{
+		if (content.length() < MIN_SAMPLED_LENGTH)
+		{
+			return false;
+		}
+		byte[] sample = new byte[SAMPLE_LENGTH];
+		int length;
+		try
+		{
+			InputStream is = content.openStream();
+			try
+			{
+				length = IOUtils.read(is, sample);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			return false;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try
+		{
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[8192];
+			long compressedLength = 0;
+			while (!deflater.finished())
+			{
+				compressedLength += deflater.deflate(buffer);
+			}
+			return compressedLength > length * MAX_COMPRESSED_RATIO;
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+}
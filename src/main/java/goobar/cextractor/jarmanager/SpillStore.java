@@ -0,0 +1,484 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps content of {@link BytesWrapper}s within a memory budget. When the
+ * budget is exceeded, content of the least recently used wrappers is written
+ * to a temporary spill file and dropped from the heap. It's read back the
+ * next time the wrapper is accessed.
+ * <p>
+ * Only plain {@link BytesWrapper}s are managed, subclasses keep their
+ * content the way they do. A wrapper keeps working after it's released from
+ * the store, but content which has been spilled can be read only until the
+ * store is closed.
+ * <p>
+ * Content is appended to the spill file, so regions of content which has
+ * been changed, or whose wrappers have been garbage collected, become dead.
+ * Once the file grows past {@link #COMPACTION_THRESHOLD} and twice its size
+ * after the last compaction, it's compacted if dead regions exceed the live
+ * ones: live content is copied to a new file and the old one is deleted.
+ * <p>
+ * A store can be shared by an archive and its snapshots (see
+ * {@link #retain()}), so they share the budget. The spill file is deleted
+ * when each of them has closed the store.
+ *
+ * @author goobar
+ */
+class SpillStore implements Closeable
+{
+
+	/**
+	 * Minimum size of the spill file before it's compacted.
+	 */
+	static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+	private long budget;
+
+	private FileChannel channel;
+
+	private boolean closed;
+
+	/**
+	 * Size of the spill file which triggers compaction.
+	 */
+	private long compactionSize;
+
+	private File file;
+
+	/**
+	 * Number of archives sharing the store.
+	 */
+	private int references;
+
+	private final Map<Slot, Slot> resident;
+
+	private long residentBytes;
+
+	/**
+	 * Slots whose content is in the spill file. Slots of wrappers which
+	 * have been garbage collected are dropped, so their regions are dead.
+	 */
+	private final Map<Slot, Boolean> spilled;
+
+	/**
+	 * @param budget
+	 *                maximum number of content bytes kept on the heap
+	 */
+	SpillStore(long budget)
+	{
+		resident = new LinkedHashMap<Slot, Slot>(16, 0.75f, true);
+		spilled = new WeakHashMap<Slot, Boolean>();
+		compactionSize = COMPACTION_THRESHOLD;
+		references = 1;
+		setBudget(budget);
+	}
+
+	/**
+	 * Closes and deletes the spill file, unless the store is still shared
+	 * by another archive.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed || --references > 0)
+		{
+			return;
+		}
+		closed = true;
+		spilled.clear();
+		if (channel != null)
+		{
+			try
+			{
+				channel.close();
+			}
+			finally
+			{
+				channel = null;
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Starts managing content of the wrapper. Does nothing when the
+	 * wrapper is already managed, has no content or it's a subclass of
+	 * {@link BytesWrapper}.
+	 *
+	 * @param wrapper
+	 *                the wrapper
+	 */
+	synchronized void attach(BytesWrapper wrapper)
+	{
+		if (wrapper.getClass() != BytesWrapper.class
+			|| wrapper.getSpillSlot() != null
+			|| wrapper.getBytes() == null)
+		{
+			return;
+		}
+		Slot slot = new Slot(wrapper.getBytes());
+		wrapper.setSpillSlot(slot);
+		slot.loaded();
+	}
+
+	/**
+	 * @return number of content bytes kept on the heap
+	 */
+	synchronized long getResidentBytes()
+	{
+		return residentBytes;
+	}
+
+	/**
+	 * @return length of the spill file, 0 if there's none
+	 * @throws IOException
+	 *                 thrown when the length cannot be read
+	 */
+	synchronized long getSpillFileLength() throws IOException
+	{
+		return channel != null ? channel.size() : 0;
+	}
+
+	/**
+	 * Stops managing content of the wrapper, e.g. when it's removed from
+	 * the archive. Its content won't be spilled any more.
+	 *
+	 * @param wrapper
+	 *                the wrapper
+	 */
+	synchronized void release(BytesWrapper wrapper)
+	{
+		Slot slot = wrapper.getSpillSlot();
+		if (slot != null && slot.store() == this && !slot.released)
+		{
+			slot.released = true;
+			if (resident.remove(slot) != null)
+			{
+				residentBytes -= slot.length;
+			}
+		}
+	}
+
+	/**
+	 * Shares the store with another archive, which closes it when it
+	 * doesn't need it any more.
+	 *
+	 * @return this store
+	 */
+	synchronized SpillStore retain()
+	{
+		references++;
+		return this;
+	}
+
+	/**
+	 * Sets the budget and spills content exceeding it.
+	 *
+	 * @param budget
+	 *                maximum number of content bytes kept on the heap
+	 */
+	synchronized void setBudget(long budget)
+	{
+		if (budget <= 0)
+		{
+			throw new IllegalArgumentException(
+				"Memory budget must be positive: " + budget);
+		}
+		this.budget = budget;
+		spillExceeding(null);
+	}
+
+	private long append(byte[] bytes) throws IOException
+	{
+		if (closed)
+		{
+			throw new IOException("Spill store is closed");
+		}
+		if (channel == null)
+		{
+			file = createSpillFile();
+			channel = openSpillFile(file);
+		}
+		else if (channel.size() >= compactionSize)
+		{
+			compact();
+		}
+		long offset = channel.size();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, offset + buffer.position());
+		}
+		return offset;
+	}
+
+	/**
+	 * Copies live content to a new spill file if dead regions exceed it.
+	 * Offsets of the slots are changed only when all the content has been
+	 * copied.
+	 */
+	private void compact() throws IOException
+	{
+		long live = 0;
+		for (Slot slot : spilled.keySet())
+		{
+			live += slot.length;
+		}
+		if (live * 2 > channel.size())
+		{
+			compactionSize = Math.max(COMPACTION_THRESHOLD,
+				channel.size() * 2);
+			return;
+		}
+		Map<Slot, Long> offsets = new IdentityHashMap<Slot, Long>();
+		File compactedFile = createSpillFile();
+		FileChannel compacted = null;
+		try
+		{
+			compacted = openSpillFile(compactedFile);
+			for (Slot slot : spilled.keySet())
+			{
+				offsets.put(slot, compacted.position());
+				long transferred = 0;
+				while (transferred < slot.length)
+				{
+					transferred += channel.transferTo(
+						slot.offset + transferred,
+						slot.length - transferred, compacted);
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			if (compacted != null)
+			{
+				compacted.close();
+			}
+			Files.deleteIfExists(compactedFile.toPath());
+			throw ex;
+		}
+		for (Entry<Slot, Long> offset : offsets.entrySet())
+		{
+			offset.getKey().offset = offset.getValue();
+		}
+		try
+		{
+			channel.close();
+		}
+		finally
+		{
+			Files.deleteIfExists(file.toPath());
+			channel = compacted;
+			file = compactedFile;
+			compactionSize = Math.max(COMPACTION_THRESHOLD,
+				channel.size() * 2);
+		}
+	}
+
+	private File createSpillFile() throws IOException
+	{
+		return File.createTempFile("jarmanager", ".spill");
+	}
+
+	private FileChannel openSpillFile(File spillFile) throws IOException
+	{
+		return FileChannel.open(spillFile.toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private byte[] read(long offset, int length) throws IOException
+	{
+		if (channel == null)
+		{
+			throw new IOException("Spill store is closed");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+			{
+				throw new EOFException(
+					"Unexpected end of spill file");
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Spills least recently used content until the budget is met. The
+	 * given slot (just accessed) is never spilled.
+	 */
+	private void spillExceeding(Slot keep)
+	{
+		Iterator<Slot> iterator = resident.keySet().iterator();
+		while (residentBytes > budget && iterator.hasNext())
+		{
+			Slot slot = iterator.next();
+			if (slot == keep)
+			{
+				continue;
+			}
+			try
+			{
+				slot.spill();
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(String.format(
+					"Cannot spill content to disk. Reason: %s",
+					ex.toString()), ex);
+			}
+			iterator.remove();
+			residentBytes -= slot.length;
+		}
+	}
+
+	/**
+	 * State of a managed wrapper. The content is either kept in
+	 * {@link #bytes} or spilled at {@link #offset} of the spill file. All
+	 * methods lock the store.
+	 */
+	class Slot
+	{
+
+		private byte[] bytes;
+
+		/**
+		 * True if the content has been set since it was last spilled.
+		 */
+		private boolean dirty = true;
+
+		private int length;
+
+		private long offset = -1;
+
+		private boolean released;
+
+		private Slot(byte[] bytes)
+		{
+			this.bytes = bytes;
+			this.length = bytes.length;
+		}
+
+		byte[] getBytes()
+		{
+			synchronized (SpillStore.this)
+			{
+				if (bytes == null && offset >= 0)
+				{
+					try
+					{
+						bytes = read(offset, length);
+					}
+					catch (IOException ex)
+					{
+						throw new IllegalStateException(
+							String.format(
+								"Cannot read spilled content. Reason: %s",
+								ex.toString()),
+							ex);
+					}
+					loaded();
+				}
+				else if (!released)
+				{
+					resident.get(this);
+				}
+				return bytes;
+			}
+		}
+
+		long length()
+		{
+			synchronized (SpillStore.this)
+			{
+				return bytes != null || offset >= 0 ? length : 0;
+			}
+		}
+
+		/**
+		 * @return content if it's kept on the heap, null if it's been
+		 *         spilled
+		 */
+		byte[] residentBytes()
+		{
+			synchronized (SpillStore.this)
+			{
+				return bytes;
+			}
+		}
+
+		void setBytes(byte[] bytes)
+		{
+			synchronized (SpillStore.this)
+			{
+				if (!released && resident.remove(this) != null)
+				{
+					residentBytes -= length;
+				}
+				this.bytes = bytes;
+				this.length = bytes != null ? bytes.length : 0;
+				offset = -1;
+				dirty = true;
+				spilled.remove(this);
+				if (bytes != null)
+				{
+					loaded();
+				}
+			}
+		}
+
+		/**
+		 * Accounts the content which has just been put on the heap.
+		 */
+		private void loaded()
+		{
+			if (released)
+			{
+				return;
+			}
+			resident.put(this, this);
+			residentBytes += length;
+			spillExceeding(this);
+		}
+
+		/**
+		 * Drops the content from the heap, writing it to the spill
+		 * file unless it's already there (it hasn't been set since it
+		 * was read back).
+		 */
+		private void spill() throws IOException
+		{
+			if (dirty)
+			{
+				offset = append(bytes);
+				dirty = false;
+				spilled.put(this, Boolean.TRUE);
+			}
+			bytes = null;
+		}
+
+		private SpillStore store()
+		{
+			return SpillStore.this;
+		}
+	}
+}
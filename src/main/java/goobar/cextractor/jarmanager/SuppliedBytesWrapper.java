@@ -0,0 +1,165 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * {@link BytesWrapper} whose content is read from a {@link ContentSupplier}
+ * whenever it's needed, so it's never kept in memory (unless it's replaced
+ * by {@link #setBytes(byte[])}).
+ *
+ * @author goobar
+ */
+class SuppliedBytesWrapper extends BytesWrapper
+{
+
+	private long length = -1;
+
+	private boolean replaced;
+
+	private final ContentSupplier supplier;
+
+	/**
+	 * @param supplier
+	 *                supplier of the content
+	 */
+	SuppliedBytesWrapper(ContentSupplier supplier)
+	{
+		super(null);
+		this.supplier = supplier;
+	}
+
+	/**
+	 * Reads the content into a new array.
+	 *
+	 * @throws IllegalStateException
+	 *                 thrown when the content cannot be read
+	 */
+	@Override
+	public synchronized byte[] getBytes()
+	{
+		if (replaced)
+		{
+			return super.getBytes();
+		}
+		try
+		{
+			InputStream is = supplier.openStream();
+			try
+			{
+				byte[] bytes = IOUtils.toByteArray(is);
+				length = bytes.length;
+				return bytes;
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(String.format(
+				"Cannot read supplied content. Reason: %s",
+				ex.toString()), ex);
+		}
+	}
+
+	/**
+	 * Length is unknown until the content is read, so the first call
+	 * reads all of it.
+	 *
+	 * @throws IllegalStateException
+	 *                 thrown when the content cannot be read
+	 */
+	@Override
+	public synchronized long length()
+	{
+		if (replaced)
+		{
+			return super.length();
+		}
+		if (length < 0)
+		{
+			try
+			{
+				writeTo(new NullOutputStream());
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(String.format(
+					"Cannot read supplied content. Reason: %s",
+					ex.toString()), ex);
+			}
+		}
+		return length;
+	}
+
+	@Override
+	public synchronized InputStream openStream() throws IOException
+	{
+		if (replaced)
+		{
+			return super.openStream();
+		}
+		return supplier.openStream();
+	}
+
+	@Override
+	public synchronized void setBytes(byte[] bytes)
+	{
+		replaced = true;
+		super.setBytes(bytes);
+	}
+
+	@Override
+	synchronized BytesWrapper copy()
+	{
+		SuppliedBytesWrapper copy = new SuppliedBytesWrapper(supplier);
+		copy.length = length;
+		if (replaced)
+		{
+			copy.setBytes(super.getBytes());
+		}
+		return copy;
+	}
+
+	@Override
+	synchronized boolean isInMemory()
+	{
+		return replaced;
+	}
+
+	@Override
+	synchronized void transferTo(FileChannel channel) throws IOException
+	{
+		writeTo(Channels.newOutputStream(channel));
+	}
+
+	@Override
+	synchronized void writeTo(OutputStream os) throws IOException
+	{
+		if (replaced)
+		{
+			super.writeTo(os);
+			return;
+		}
+		InputStream is = supplier.openStream();
+		try
+		{
+			length = IOUtils.copyLarge(is, os);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+}
@@ -4,27 +4,47 @@
  */
 package goobar.cextractor.jarmanager;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.Manifest;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,33 +54,114 @@ import org.slf4j.LoggerFactory;
  * interface. This class is useful when building or updating archive without
  * need to immediately persisting it. Method {@link #save()} is not implemented
  * (it throws {@link UnsupportedOperationException}).
+ * <p>
+ * Entries are indexed by their names and kept in insertion order, so adding,
+ * finding and removing an entry doesn't depend on the archive size. They're
+ * also sorted by their names, so finding or removing content of a directory
+ * depends only on the number of the entries found or removed.
+ * <p>
+ * Memory used by the content can be limited (see
+ * {@link #setMemoryBudget(long)}). Content exceeding the budget is spilled to
+ * a temporary file until {@link #close()} is called. Large content read from
+ * a stream is buffered in a temporary file until its entry is removed or the
+ * archive is closed.
+ * <p>
+ * When an executor is set (see {@link #setExecutor(ExecutorService)}), files
+ * of a directory are read in parallel when it's added. Entries are added in
+ * the same order as when the directory is added sequentially.
+ * <p>
+ * Entries with identical content can share one array (see
+ * {@link #setDeduplication(boolean)}).
+ * <p>
+ * Variants of an archive can be forked from it cheaply (see
+ * {@link #snapshot()}).
+ * <p>
+ * This class isn't thread safe, use {@link ConcurrentJarManager} to modify
+ * an archive from several threads.
  *
  * @author goobar
  */
-public class VirtualJarManager implements JarManager
+public class VirtualJarManager implements JarManager, Closeable
 {
 
+	/**
+	 * Maximum number of files read ahead of the one being added when a
+	 * directory is added in parallel.
+	 */
+	private static final int PARALLEL_READ_WINDOW = 256;
+
+	/**
+	 * Content read from a stream which is larger than this is buffered in
+	 * a temporary file.
+	 */
+	private static final int STREAM_MEMORY_THRESHOLD = 1024 * 1024;
+
 	private static Logger logger = LoggerFactory
 		.getLogger(VirtualJarManager.class);
 
-	private Manifest manifest;
+	/**
+	 * Number of archives referencing each temporary file buffering content
+	 * read from a stream, shared with snapshots. A file is deleted when no
+	 * archive references it.
+	 */
+	private volatile Map<File, Integer> bufferFileReferences;
+
+	/**
+	 * Temporary files buffering content read from streams referenced by
+	 * this archive, released when their entries are removed.
+	 */
+	private final Set<File> bufferFiles;
+
+	private volatile ContentPool contentPool;
+
+	private volatile ExecutorService executor;
+
+	private volatile Manifest manifest;
+
+	private final AtomicLong modificationCount;
 
-	private final Map<JarEntry, BytesWrapper> virtualArchiveContent;
+	/**
+	 * Token of the entries this archive can modify. Other entries may be
+	 * shared with a snapshot, so they're copied before they're handed out.
+	 */
+	private volatile Object owner;
+
+	private volatile SpillStore spillStore;
+
+	private final EntryStore virtualArchiveContent;
 
 	@SuppressWarnings("javadoc")
 	public VirtualJarManager()
 	{
-		virtualArchiveContent = new HashMap<JarEntry, BytesWrapper>();
+		this(new LinkedEntryStore());
+	}
+
+	/**
+	 * @param virtualArchiveContent
+	 *                store of the entries
+	 */
+	VirtualJarManager(EntryStore virtualArchiveContent)
+	{
+		this.virtualArchiveContent = virtualArchiveContent;
+		bufferFileReferences = new HashMap<File, Integer>();
+		bufferFiles = Collections
+			.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 		manifest = new Manifest();
+		modificationCount = new AtomicLong();
+		owner = new Object();
 	}
 
+	/**
+	 * Class file is read from the directory or the jar on the class path
+	 * it's been loaded from.
+	 */
 	@Override
 	public void addClass(Class<?> clazz) throws ClassNotFoundException,
 		ArchiveModificationException, EntryDuplicatedException
 	{
 		try
 		{
-			File classFile = findClassFile(clazz);
+			URL classResource = findClassResource(clazz);
 			try
 			{
 				addEntry(new JarEntry(
@@ -72,15 +173,27 @@ public class VirtualJarManager implements JarManager
 			{
 				logDebug(ex.getMessage(), ex);
 			}
-			addFile(classFile,
-				new JarEntry(convertCanonicalNameToEntryName(
-					clazz.getCanonicalName())
-					+ JarManagerUtils.JAVA_CLASS_FILE_EXTENSION));
+			JarEntry entry = new JarEntry(convertCanonicalNameToEntryName(
+				clazz.getCanonicalName())
+				+ JarManagerUtils.JAVA_CLASS_FILE_EXTENSION);
+			if (isJarResource(classResource))
+			{
+				addContent(entry, readJarResource(classResource));
+			}
+			else
+			{
+				addFile(new File(classResource.toURI()), entry);
+			}
 		}
 		catch (FileNotFoundException ex)
 		{
 			throw new ClassNotFoundException(ex.getMessage(), ex);
 		}
+		catch (IOException ex)
+		{
+			throw new ArchiveModificationException(ex.getMessage(),
+				ex);
+		}
 		catch (URISyntaxException ex)
 		{
 			throw new ArchiveModificationException(ex.getMessage(),
@@ -92,9 +205,12 @@ public class VirtualJarManager implements JarManager
 	public void addContent(JarEntry entry, BytesWrapper bytes)
 		throws ArchiveModificationException, EntryDuplicatedException
 	{
-		checkIsEntryDuplicated(entry);
+		if (checkIsEntryDuplicated(entry))
+		{
+			throwEntryDuplicatedException(entry);
+		}
 		checkIfContent(entry);
-		virtualArchiveContent.put(entry, bytes);
+		putEntry(entry, bytes);
 	}
 
 	@Override
@@ -104,8 +220,16 @@ public class VirtualJarManager implements JarManager
 		try
 		{
 			SimpleFileVisitorImpl visitor = new SimpleFileVisitorImpl(
-				dir);
-			Files.walkFileTree(dir, visitor);
+				dir, executor);
+			try
+			{
+				Files.walkFileTree(dir, visitor);
+				visitor.addPendingEntries(true);
+			}
+			finally
+			{
+				visitor.cancelPendingEntries();
+			}
 
 			ArchiveModificationException archiveModificationException = visitor
 				.getArchiveModificationException();
@@ -132,7 +256,57 @@ public class VirtualJarManager implements JarManager
 		{
 			throw new ArchiveModificationException(String.format(
 				"Cannot add directory %s because of I/O errors. Reason: %s",
-				ex.toString()), ex);
+				dir.toString(), ex.toString()), ex);
+		}
+	}
+
+	/**
+	 * Entries are validated in one pass. If another thread adds an entry
+	 * with the same name meanwhile ({@link ConcurrentJarManager}), the
+	 * entries already added are removed again.
+	 */
+	@Override
+	public void addEntries(Collection<Entry<JarEntry, BytesWrapper>> entries)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		Set<String> names = new HashSet<String>();
+		for (Entry<JarEntry, BytesWrapper> entry : entries)
+		{
+			JarEntry jarEntry = entry.getKey();
+			if (!names.add(jarEntry.getName())
+				|| checkIsEntryDuplicated(jarEntry))
+			{
+				throwEntryDuplicatedException(jarEntry);
+			}
+			if (entry.getValue() != null)
+			{
+				checkIfContent(jarEntry);
+			}
+			else
+			{
+				checkIfDirectory(jarEntry);
+			}
+		}
+		List<JarEntry> added = new ArrayList<JarEntry>(names.size());
+		boolean complete = false;
+		try
+		{
+			for (Entry<JarEntry, BytesWrapper> entry : entries)
+			{
+				putEntry(entry.getKey(), entry.getValue());
+				added.add(entry.getKey());
+			}
+			complete = true;
+		}
+		finally
+		{
+			if (!complete)
+			{
+				for (JarEntry jarEntry : added)
+				{
+					release(virtualArchiveContent.remove(jarEntry));
+				}
+			}
 		}
 	}
 
@@ -145,7 +319,7 @@ public class VirtualJarManager implements JarManager
 			throwEntryDuplicatedException(entry);
 		}
 		checkIfDirectory(entry);
-		virtualArchiveContent.put(entry, null);
+		putEntry(entry, null);
 	}
 
 	@Override
@@ -156,12 +330,15 @@ public class VirtualJarManager implements JarManager
 		FileInputStream fis = null;
 		try
 		{
-			checkIsEntryDuplicated(entry);
+			if (checkIsEntryDuplicated(entry))
+			{
+				throwEntryDuplicatedException(entry);
+			}
 			checkIfContent(entry);
 			fis = new FileInputStream(file);
 			byte[] content = IOUtils.toByteArray(fis);
 			BytesWrapper bytesWrapper = new BytesWrapper(content);
-			virtualArchiveContent.put(entry, bytesWrapper);
+			putEntry(entry, bytesWrapper);
 		}
 		catch (FileNotFoundException ex)
 		{
@@ -188,11 +365,17 @@ public class VirtualJarManager implements JarManager
 	}
 
 	@Override
-	public void addManifest(Manifest manifest)
+	public synchronized void addManifest(Manifest manifest)
 	{
 		this.manifest = manifest;
+		modificationCount.incrementAndGet();
 	}
 
+	/**
+	 * Class files are read from the directory or the jar on the class path
+	 * the representative has been loaded from. Central directory of the
+	 * jar is read once to find them.
+	 */
 	@Override
 	public void addPackage(Class<?> representative)
 		throws ArchiveModificationException, ClassNotFoundException,
@@ -200,7 +383,16 @@ public class VirtualJarManager implements JarManager
 	{
 		try
 		{
-			File file = findClassFile(representative);
+			URL classResource = findClassResource(representative);
+			String packageEntryName = convertCanonicalNameToEntryName(
+				representative.getPackage().getName())
+				+ JarManagerUtils.ENTRY_DIRECTORY_SUFFIX;
+			if (isJarResource(classResource))
+			{
+				addPackageFromJar(classResource, packageEntryName);
+				return;
+			}
+			File file = new File(classResource.toURI());
 			String path = file.getAbsolutePath();
 			Integer separatorIndex = path
 				.lastIndexOf(File.separator);
@@ -227,15 +419,7 @@ public class VirtualJarManager implements JarManager
 				});
 			for (File classFile : classFiles)
 			{
-				String packageEntryName = convertCanonicalNameToEntryName(
-					representative.getPackage().getName())
-					+ JarManagerUtils.ENTRY_DIRECTORY_SUFFIX;
-				JarEntry jarEntry = new JarEntry(
-					packageEntryName);
-				if (!checkIsEntryDuplicated(jarEntry))
-				{
-					addEntry(jarEntry);
-				}
+				addPackageEntry(packageEntryName);
 				addFile(classFile, new JarEntry(packageEntryName
 					+ classFile.getName()));
 			}
@@ -249,10 +433,17 @@ public class VirtualJarManager implements JarManager
 		{
 			throw new ClassNotFoundException(ex.getMessage(), ex);
 		}
+		catch (IOException ex)
+		{
+			throw new ArchiveModificationException(String.format(
+				"Cannot add package of %s. Reason: %s",
+				representative.getName(), ex.toString()), ex);
+		}
 	}
 
 	@Override
-	public void addPropertiesToManifest(Map<String, String> properties)
+	public synchronized void addPropertiesToManifest(
+		Map<String, String> properties)
 		throws ArchiveModificationException
 	{
 		for (Entry<String, String> property : properties.entrySet())
@@ -260,13 +451,88 @@ public class VirtualJarManager implements JarManager
 			manifest.getMainAttributes().putValue(property.getKey(),
 				property.getValue());
 		}
+		modificationCount.incrementAndGet();
+	}
+
+	@Override
+	public void addStreamContent(JarEntry entry, InputStream content)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		if (checkIsEntryDuplicated(entry))
+		{
+			throwEntryDuplicatedException(entry);
+		}
+		checkIfContent(entry);
+		try
+		{
+			BytesWrapper bytes = readContent(content);
+			try
+			{
+				putEntry(entry, bytes);
+			}
+			catch (EntryDuplicatedException ex)
+			{
+				deleteBufferFile(bytes);
+				throw ex;
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new ArchiveModificationException(String.format(
+				"Cannot read content of entry %s. Reason: %s",
+				entry.getName(), ex.toString()), ex);
+		}
+	}
+
+	@Override
+	public void addSuppliedContent(JarEntry entry, ContentSupplier content)
+		throws ArchiveModificationException, EntryDuplicatedException
+	{
+		addContent(entry, new SuppliedBytesWrapper(content));
+	}
+
+	/**
+	 * Deletes the spill file and the files buffering content read from
+	 * streams, unless they're shared with a snapshot which hasn't been
+	 * closed. Content which has been spilled or buffered is no longer
+	 * available.
+	 *
+	 * @throws IOException
+	 *                 thrown when spill file cannot be deleted
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			SpillStore store = spillStore;
+			spillStore = null;
+			if (store != null)
+			{
+				store.close();
+			}
+		}
+		finally
+		{
+			Iterator<File> files = bufferFiles.iterator();
+			while (files.hasNext())
+			{
+				File file = files.next();
+				files.remove();
+				releaseBufferFile(file);
+			}
+		}
 	}
 
 	@Override
 	public List<JarEntry> entries()
 	{
-		List<JarEntry> entries = new ArrayList<JarEntry>(
-			virtualArchiveContent.keySet());
+		List<JarEntry> entries = new ArrayList<JarEntry>();
+		for (Entry<JarEntry, BytesWrapper> entry : ownAll(
+			virtualArchiveContent.entries()))
+		{
+			entries.add(entry.getKey());
+		}
 
 		return entries;
 	}
@@ -274,9 +540,7 @@ public class VirtualJarManager implements JarManager
 	@Override
 	public List<Map.Entry<JarEntry, BytesWrapper>> entriesWithContent()
 	{
-		List<Map.Entry<JarEntry, BytesWrapper>> result = new ArrayList<Map.Entry<JarEntry, BytesWrapper>>(
-			virtualArchiveContent.entrySet());
-		return result;
+		return ownAll(virtualArchiveContent.entries());
 	}
 
 	@Override
@@ -286,52 +550,124 @@ public class VirtualJarManager implements JarManager
 			"Method extract not implemented");
 	}
 
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> findChildren(
+		String directoryName) throws ArchiveReadException
+	{
+		return ownAll(virtualArchiveContent.children(directoryName));
+	}
+
 	@Override
 	public Entry<JarEntry, BytesWrapper> findEntryByName(String entryName)
 		throws ArchiveReadException
 	{
-		Entry<JarEntry, BytesWrapper> result = null;
+		return own(virtualArchiveContent.get(entryName));
+	}
+
+	@Override
+	public List<Entry<JarEntry, BytesWrapper>> findSubtree(String prefix)
+		throws ArchiveReadException
+	{
+		return ownAll(virtualArchiveContent.subtree(prefix));
+	}
+
+	@Override
+	public void generateManifestFlag(boolean generateManifest)
+	{
+	}
+
+	/**
+	 * Returns number of bytes saved by entries sharing their content (see
+	 * {@link #setDeduplication(boolean)}), i.e. total length of the
+	 * content arrays minus length of the distinct ones. Content spilled
+	 * to disk isn't counted.
+	 *
+	 * @return number of saved bytes
+	 */
+	public long getDeduplicatedBytes()
+	{
+		Map<byte[], Boolean> arrays = new IdentityHashMap<byte[], Boolean>();
+		long deduplicatedBytes = 0;
 		for (Entry<JarEntry, BytesWrapper> entry : virtualArchiveContent
-			.entrySet())
+			.entries())
 		{
-			if (entry.getKey().getName().equals(entryName))
+			BytesWrapper content = entry.getValue();
+			if (content == null
+				|| content.getClass() != BytesWrapper.class)
+			{
+				continue;
+			}
+			byte[] bytes = content.getSpillSlot() != null
+				? content.getSpillSlot().residentBytes()
+				: content.getBytes();
+			if (bytes != null
+				&& arrays.put(bytes, Boolean.TRUE) != null)
 			{
-				result = entry;
+				deduplicatedBytes += bytes.length;
 			}
 		}
-
-		return result;
+		return deduplicatedBytes;
 	}
 
 	@Override
-	public void generateManifestFlag(boolean generateManifest)
+	public Manifest manifest()
 	{
+		return manifest;
 	}
 
 	@Override
-	public Manifest manifest()
+	public InputStream openEntryStream(String entryName)
+		throws ArchiveReadException
 	{
-		return manifest;
+		Entry<JarEntry, BytesWrapper> entry = virtualArchiveContent
+			.get(entryName);
+		if (entry == null || entry.getValue() == null)
+		{
+			return null;
+		}
+		try
+		{
+			return entry.getValue().openStream();
+		}
+		catch (IOException ex)
+		{
+			throw new ArchiveReadException(String.format(
+				"Cannot read entry %s. Reason: %s", entryName,
+				ex.toString()), ex);
+		}
 	}
 
+	/**
+	 * An entry is removed also when it's been copied because it was shared
+	 * with a snapshot (see {@link #snapshot()}).
+	 */
 	@Override
 	public void removeEntry(JarEntry entry)
 	{
-		virtualArchiveContent.remove(entry);
+		Entry<JarEntry, BytesWrapper> stored = virtualArchiveContent
+			.get(entry.getName());
+		if (stored != null && ((StoredEntry) stored).origin == entry)
+		{
+			entry = stored.getKey();
+		}
+		release(virtualArchiveContent.remove(entry));
 	}
 
 	@Override
 	public void removeEntry(String entryName)
 		throws ArchiveModificationException
 	{
-		Iterator<JarEntry> it = virtualArchiveContent.keySet()
-			.iterator();
-		while (it.hasNext())
+		release(virtualArchiveContent.remove(entryName));
+	}
+
+	@Override
+	public void removeSubtree(String prefix)
+		throws ArchiveModificationException
+	{
+		for (Entry<JarEntry, BytesWrapper> entry : virtualArchiveContent
+			.subtree(prefix))
 		{
-			if (it.next().getName().equals(entryName))
-			{
-				it.remove();
-			}
+			release(virtualArchiveContent.remove(entry.getKey()));
 		}
 	}
 
@@ -342,6 +678,186 @@ public class VirtualJarManager implements JarManager
 			"Method save not implemented");
 	}
 
+	/**
+	 * Enables deduplication of content. When an entry is added, its
+	 * content array is replaced with an array with the same content used
+	 * by another entry, if there's one. Only content of plain
+	 * {@link BytesWrapper}s is deduplicated. Content which is already in
+	 * the archive is deduplicated when it's enabled.
+	 * <p>
+	 * Arrays of deduplicated content are shared, so they mustn't be
+	 * modified in place. Use {@link BytesWrapper#setBytes(byte[])} to
+	 * change content of an entry. Content spilled to disk (see
+	 * {@link #setMemoryBudget(long)}) is read back into its own array.
+	 *
+	 * @param deduplication
+	 *                true to deduplicate content, false (default) to keep
+	 *                content arrays as they're added
+	 */
+	public synchronized void setDeduplication(boolean deduplication)
+	{
+		if (!deduplication)
+		{
+			contentPool = null;
+			return;
+		}
+		if (contentPool != null)
+		{
+			return;
+		}
+		contentPool = new ContentPool();
+		for (Entry<JarEntry, BytesWrapper> entry : entriesWithContent())
+		{
+			deduplicate(entry.getValue());
+		}
+	}
+
+	/**
+	 * Sets executor used to read files when a directory is added (see
+	 * {@link #addDirectory(Path)}). At most {@value #PARALLEL_READ_WINDOW}
+	 * files are read ahead of the one being added. The executor isn't shut
+	 * down by this manager.
+	 *
+	 * @param executor
+	 *                the executor, or null to read files sequentially
+	 *                (default)
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Limits memory used by the content of entries. When the budget is
+	 * exceeded, content of the least recently used entries is spilled to a
+	 * temporary file and read back when it's accessed. Only content kept
+	 * in plain {@link BytesWrapper}s counts, as other wrappers keep their
+	 * content elsewhere (e.g. entries of an archive opened lazily are read
+	 * from the archive file when they're needed).
+	 *
+	 * @param budget
+	 *                maximum number of content bytes kept in memory
+	 * @throws IllegalArgumentException
+	 *                 thrown when budget isn't positive
+	 */
+	public synchronized void setMemoryBudget(long budget)
+	{
+		if (spillStore != null)
+		{
+			spillStore.setBudget(budget);
+			return;
+		}
+		spillStore = new SpillStore(budget);
+		for (Entry<JarEntry, BytesWrapper> entry : entriesWithContent())
+		{
+			if (entry.getValue() != null)
+			{
+				spillStore.attach(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Creates a copy of this archive, e.g. to build a variant of it. The
+	 * copy shares the entries and their content with this archive until
+	 * one of the archives hands an entry out: it's copied then (its
+	 * {@link JarEntry} and {@link BytesWrapper}, but not the content kept
+	 * elsewhere), so creating the copy doesn't depend on the archive size.
+	 * Entries added to or removed from one of the archives later aren't
+	 * seen by the other one, neither are changes of the entries they hand
+	 * out. Don't modify entries passed to this archive before the copy is
+	 * created, use the entries it hands out instead. The manifest is
+	 * copied.
+	 * <p>
+	 * The copy has the same executor and deduplication. It shares the
+	 * memory budget (see {@link #setMemoryBudget(long)}) with this archive.
+	 * The spill file and the files buffering content read from streams are
+	 * deleted when both archives are closed.
+	 *
+	 * @return the copy
+	 */
+	public synchronized VirtualJarManager snapshot()
+	{
+		VirtualJarManager snapshot = createSnapshot(
+			virtualArchiveContent.snapshot());
+		// entries stored so far are shared
+		owner = new Object();
+		snapshot.bufferFileReferences = bufferFileReferences;
+		for (File file : bufferFiles)
+		{
+			snapshot.retainBufferFile(file);
+		}
+		snapshot.contentPool = contentPool != null ? new ContentPool()
+			: null;
+		snapshot.executor = executor;
+		snapshot.manifest = manifest != null ? new Manifest(manifest)
+			: null;
+		snapshot.modificationCount.set(modificationCount.get());
+		SpillStore store = spillStore;
+		snapshot.spillStore = store != null ? store.retain() : null;
+		return snapshot;
+	}
+
+	/**
+	 * Creates manager of the same class for {@link #snapshot()}.
+	 *
+	 * @param virtualArchiveContent
+	 *                store of the entries
+	 * @return the manager
+	 */
+	VirtualJarManager createSnapshot(EntryStore virtualArchiveContent)
+	{
+		return new VirtualJarManager(virtualArchiveContent);
+	}
+
+	/**
+	 * Returns number of modifications made through this manager: entries
+	 * added or removed, manifest added or its properties changed. Changes
+	 * of content made by {@link BytesWrapper#setBytes(byte[])} aren't
+	 * counted.
+	 *
+	 * @return number of modifications
+	 */
+	long modificationCount()
+	{
+		return modificationCount.get();
+	}
+
+	/**
+	 * Replaces content of the stored entry with the same content read
+	 * another way, e.g. from the new version of the archive file. The
+	 * entry keeps its position and it isn't counted as a modification. An
+	 * entry shared with a snapshot is copied. Does nothing if the entry
+	 * has been removed or replaced meanwhile.
+	 *
+	 * @param stored
+	 *                the stored entry, see {@link #storedEntries()}
+	 * @param content
+	 *                the same content
+	 */
+	void replaceContent(Entry<JarEntry, BytesWrapper> stored,
+		BytesWrapper content)
+	{
+		StoredEntry entry = (StoredEntry) stored;
+		Object token = owner;
+		JarEntry jarEntry = entry.owner == token ? entry.getKey()
+			: new JarEntry(entry.getKey());
+		virtualArchiveContent.replace(stored, new StoredEntry(token,
+			jarEntry, content, entry.origin));
+	}
+
+	/**
+	 * Returns the entries as they're stored, without copying the ones
+	 * shared with a snapshot (see {@link #snapshot()}), so neither the
+	 * entries nor their content may be modified.
+	 *
+	 * @return snapshot of the entries in insertion order
+	 */
+	List<Entry<JarEntry, BytesWrapper>> storedEntries()
+	{
+		return virtualArchiveContent.entries();
+	}
+
 	private void checkIfContent(JarEntry entry)
 		throws ArchiveModificationException
 	{
@@ -364,19 +880,104 @@ public class VirtualJarManager implements JarManager
 		}
 	}
 
-	private boolean checkIsEntryDuplicated(JarEntry entry)
-		throws EntryDuplicatedException
+	/**
+	 * Adds a file read by the executor. Checks are done in the same order
+	 * and errors reported the same way as by
+	 * {@link #addFile(File, JarEntry)}.
+	 */
+	private void addReadFile(JarEntry entry, Future<byte[]> content)
+		throws ArchiveModificationException, FileNotFoundException,
+		EntryDuplicatedException
 	{
-		for (Entry<JarEntry, BytesWrapper> entryIter : virtualArchiveContent
-			.entrySet())
+		if (checkIsEntryDuplicated(entry))
 		{
-			if (entryIter.getKey().getName()
-				.equals(entry.getName()))
+			throwEntryDuplicatedException(entry);
+		}
+		checkIfContent(entry);
+		try
+		{
+			putEntry(entry, new BytesWrapper(content.get()));
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ArchiveModificationException(ex.toString(), ex);
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof FileNotFoundException)
+			{
+				throw new FileNotFoundException(
+					ex.getCause().getMessage());
+			}
+			throw new ArchiveModificationException(
+				ex.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Adds the package directory entry unless it's already in the archive.
+	 */
+	private void addPackageEntry(String packageEntryName)
+		throws ArchiveModificationException
+	{
+		try
+		{
+			addEntry(new JarEntry(packageEntryName));
+		}
+		catch (EntryDuplicatedException ex)
+		{
+			logDebug(ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Adds class files of the package (but not of its subpackages) from
+	 * the jar the class resource is in. Content of the classes is read
+	 * straight from the jar.
+	 */
+	private void addPackageFromJar(URL classResource,
+		String packageEntryName) throws IOException, URISyntaxException,
+		ArchiveModificationException, EntryDuplicatedException
+	{
+		JarURLConnection connection = (JarURLConnection) classResource
+			.openConnection();
+		URL jarFileURL = connection.getJarFileURL();
+		if (!"file".equals(jarFileURL.getProtocol()))
+		{
+			throw new IOException(
+				"Jar isn't a local file: " + jarFileURL);
+		}
+		ArchiveSource source = ArchiveSource
+			.open(new File(jarFileURL.toURI()));
+		try
+		{
+			for (ZipEntryRecord record : source.records())
 			{
-				return true;
+				String name = record.getName();
+				if (name.startsWith(packageEntryName)
+					&& name.endsWith(
+						JarManagerUtils.JAVA_CLASS_FILE_EXTENSION)
+					&& name.indexOf(
+						JarManagerUtils.ENTRY_DIRECTORY_SUFFIX,
+						packageEntryName.length()) < 0)
+				{
+					addPackageEntry(packageEntryName);
+					addContent(new JarEntry(name),
+						new BytesWrapper(source.read(name)));
+				}
 			}
 		}
-		return false;
+		finally
+		{
+			source.close();
+		}
+	}
+
+	private boolean checkIsEntryDuplicated(JarEntry entry)
+		throws EntryDuplicatedException
+	{
+		return virtualArchiveContent.get(entry.getName()) != null;
 	}
 
 	private String convertCanonicalNameToEntryName(String canonicalName)
@@ -389,14 +990,69 @@ public class VirtualJarManager implements JarManager
 			.convertCanonicalNameToEntryName(canonicalName);
 	}
 
-	private File findClassFile(Class<?> clazz) throws URISyntaxException
+	private void deduplicate(BytesWrapper content)
+	{
+		ContentPool pool = contentPool;
+		if (pool == null || content == null
+			|| content.getClass() != BytesWrapper.class
+			|| content.getSpillSlot() != null)
+		{
+			return;
+		}
+		byte[] bytes = content.getBytes();
+		if (bytes != null)
+		{
+			content.setBytes(pool.intern(bytes));
+		}
+	}
+
+	/**
+	 * Releases the file buffering the content if it's been read from a
+	 * stream by this archive or a snapshot it's been created from.
+	 */
+	private void deleteBufferFile(BytesWrapper content)
+	{
+		if (!(content instanceof FileRegionBytesWrapper))
+		{
+			return;
+		}
+		File file = ((FileRegionBytesWrapper) content).getFile();
+		if (bufferFiles.remove(file))
+		{
+			releaseBufferFile(file);
+		}
+	}
+
+	private void deleteFileQuietly(File file)
+	{
+		try
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+		catch (IOException ex)
+		{
+			logger.warn(ex.getMessage(), ex);
+		}
+	}
+
+	private URL findClassResource(Class<?> clazz)
+		throws FileNotFoundException
 	{
 		String entryName = convertCanonicalNameToEntryName(
 			clazz.getCanonicalName());
 		URL url = clazz.getClassLoader()
 			.getResource(entryName + ".class");
-		File file = new File(url.toURI());
-		return file;
+		if (url == null)
+		{
+			throw new FileNotFoundException(
+				"Class file of " + clazz.getName() + " not found");
+		}
+		return url;
+	}
+
+	private boolean isJarResource(URL url)
+	{
+		return "jar".equals(url.getProtocol());
 	}
 
 	/**
@@ -408,6 +1064,211 @@ public class VirtualJarManager implements JarManager
 		logger.debug(message, ex);
 	}
 
+	/**
+	 * Returns the stored entry if it belongs to this archive. An entry
+	 * which may be shared with a snapshot is replaced with a copy first,
+	 * so changes of the entry or its content aren't seen by the snapshot.
+	 *
+	 * @return the entry, or null if it's been removed meanwhile
+	 */
+	private Entry<JarEntry, BytesWrapper> own(
+		Entry<JarEntry, BytesWrapper> stored)
+	{
+		Object token = owner;
+		while (stored != null && ((StoredEntry) stored).owner != token)
+		{
+			StoredEntry copy = ((StoredEntry) stored).copy(token);
+			deduplicate(copy.getValue());
+			SpillStore store = spillStore;
+			if (store != null && copy.getValue() != null)
+			{
+				store.attach(copy.getValue());
+			}
+			if (virtualArchiveContent.replace(stored, copy))
+			{
+				return copy;
+			}
+			if (store != null && copy.getValue() != null)
+			{
+				store.release(copy.getValue());
+			}
+			stored = virtualArchiveContent
+				.get(stored.getKey().getName());
+		}
+		return stored;
+	}
+
+	/**
+	 * Replaces the entries with the ones belonging to this archive, see
+	 * {@link #own(Entry)}.
+	 *
+	 * @return the entries
+	 */
+	private List<Entry<JarEntry, BytesWrapper>> ownAll(
+		List<Entry<JarEntry, BytesWrapper>> entries)
+	{
+		ListIterator<Entry<JarEntry, BytesWrapper>> iterator = entries
+			.listIterator();
+		while (iterator.hasNext())
+		{
+			Entry<JarEntry, BytesWrapper> entry = own(iterator.next());
+			if (entry != null)
+			{
+				iterator.set(entry);
+			}
+			else
+			{
+				iterator.remove();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Stores the entry unless another one with the same name has been
+	 * stored since it was checked (by another thread).
+	 */
+	private void putEntry(JarEntry entry, BytesWrapper bytes)
+		throws EntryDuplicatedException
+	{
+		deduplicate(bytes);
+		SpillStore store = spillStore;
+		boolean attached = store != null && bytes != null
+			&& bytes.getSpillSlot() == null;
+		if (attached)
+		{
+			store.attach(bytes);
+		}
+		if (virtualArchiveContent.putIfAbsent(
+			new StoredEntry(owner, entry, bytes, entry)) != null)
+		{
+			if (attached)
+			{
+				store.release(bytes);
+			}
+			throwEntryDuplicatedException(entry);
+		}
+		modificationCount.incrementAndGet();
+	}
+
+	/**
+	 * Reads the stream into memory, or into a temporary file when it's
+	 * larger than {@link #STREAM_MEMORY_THRESHOLD}. The file is deleted
+	 * when the entry is removed or this archive is closed.
+	 */
+	private BytesWrapper readContent(InputStream content) throws IOException
+	{
+		DeferredFileOutputStream buffer = new DeferredFileOutputStream(
+			STREAM_MEMORY_THRESHOLD, "jarmanager", ".tmp", null);
+		try
+		{
+			IOUtils.copyLarge(content, buffer);
+			buffer.close();
+		}
+		catch (IOException ex)
+		{
+			IOUtils.closeQuietly(buffer);
+			if (buffer.getFile() != null)
+			{
+				Files.deleteIfExists(buffer.getFile().toPath());
+			}
+			throw ex;
+		}
+		if (buffer.isInMemory())
+		{
+			return new BytesWrapper(buffer.getData());
+		}
+		retainBufferFile(buffer.getFile());
+		return new FileRegionBytesWrapper(buffer.getFile());
+	}
+
+	/**
+	 * Reads the resource in a jar without caching the jar.
+	 */
+	private BytesWrapper readJarResource(URL resource) throws IOException
+	{
+		URLConnection connection = resource.openConnection();
+		connection.setUseCaches(false);
+		InputStream is = connection.getInputStream();
+		try
+		{
+			return new BytesWrapper(IOUtils.toByteArray(is));
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Counts removal of the entry and releases its content. Content shared
+	 * with a snapshot is left to the memory budget.
+	 */
+	private void release(Entry<JarEntry, BytesWrapper> entry)
+	{
+		if (entry != null)
+		{
+			modificationCount.incrementAndGet();
+			deleteBufferFile(entry.getValue());
+		}
+		SpillStore store = spillStore;
+		if (store != null && entry != null && entry.getValue() != null
+			&& ((StoredEntry) entry).owner == owner)
+		{
+			store.release(entry.getValue());
+		}
+	}
+
+	/**
+	 * Drops reference of this archive to the buffer file, the file is
+	 * deleted when no snapshot references it.
+	 */
+	private void releaseBufferFile(File file)
+	{
+		synchronized (bufferFileReferences)
+		{
+			Integer references = bufferFileReferences.get(file);
+			if (references != null && references > 1)
+			{
+				bufferFileReferences.put(file, references - 1);
+				return;
+			}
+			bufferFileReferences.remove(file);
+		}
+		deleteFileQuietly(file);
+	}
+
+	private void retainBufferFile(File file)
+	{
+		synchronized (bufferFileReferences)
+		{
+			Integer references = bufferFileReferences.get(file);
+			bufferFileReferences.put(file,
+				references != null ? references + 1 : 1);
+		}
+		bufferFiles.add(file);
+	}
+
+	private Future<byte[]> submitFileRead(final File file)
+	{
+		return executor.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				FileInputStream fis = new FileInputStream(file);
+				try
+				{
+					return IOUtils.toByteArray(fis);
+				}
+				finally
+				{
+					fis.close();
+				}
+			}
+		});
+	}
+
 	private void throwEntryDuplicatedException(JarEntry entry)
 		throws EntryDuplicatedException
 	{
@@ -415,6 +1276,41 @@ public class VirtualJarManager implements JarManager
 			"Entry " + entry + " already exists in archive");
 	}
 
+	/**
+	 * Stored entry with the token of the archive it belongs to and the
+	 * {@link JarEntry} it's been added with, which is kept by its copies.
+	 */
+	private static class StoredEntry
+		extends SimpleEntry<JarEntry, BytesWrapper>
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final JarEntry origin;
+
+		private final Object owner;
+
+		StoredEntry(Object owner, JarEntry entry, BytesWrapper bytes,
+			JarEntry origin)
+		{
+			super(entry, bytes);
+			this.owner = owner;
+			this.origin = origin;
+		}
+
+		/**
+		 * @param owner
+		 *                token of the archive the copy belongs to
+		 * @return copy of the entry and its content
+		 */
+		StoredEntry copy(Object owner)
+		{
+			BytesWrapper bytes = getValue();
+			return new StoredEntry(owner, new JarEntry(getKey()),
+				bytes != null ? bytes.copy() : null, origin);
+		}
+	}
+
 	private class SimpleFileVisitorImpl extends SimpleFileVisitor<Path>
 	{
 
@@ -422,13 +1318,74 @@ public class VirtualJarManager implements JarManager
 
 		private EntryDuplicatedException entryDuplicatedException;
 
+		private final ExecutorService executor;
+
 		private FileNotFoundException fileNotFoundException;
 
+		/**
+		 * Directories (without content) and files (with content being
+		 * read) waiting to be added in the walk order.
+		 */
+		private final Deque<Entry<Path, Future<byte[]>>> pendingEntries;
+
 		private final Path root;
 
-		public SimpleFileVisitorImpl(Path root)
+		public SimpleFileVisitorImpl(Path root, ExecutorService executor)
 		{
 			this.root = root;
+			this.executor = executor;
+			pendingEntries = new ArrayDeque<Entry<Path, Future<byte[]>>>();
+		}
+
+		/**
+		 * Adds pending entries in the walk order. Stops at a file which
+		 * hasn't been read yet, unless all entries should be added or
+		 * too many files are pending.
+		 *
+		 * @param all
+		 *                if true waits until all pending files are read
+		 * @return {@link FileVisitResult#TERMINATE} when an entry
+		 *         couldn't be added
+		 */
+		public FileVisitResult addPendingEntries(boolean all)
+		{
+			while (!pendingEntries.isEmpty())
+			{
+				Entry<Path, Future<byte[]>> pending = pendingEntries
+					.peek();
+				Future<byte[]> content = pending.getValue();
+				if (!all && content != null && !content.isDone()
+					&& pendingEntries
+						.size() < PARALLEL_READ_WINDOW)
+				{
+					break;
+				}
+				pendingEntries.poll();
+				FileVisitResult result = content == null
+					? addDirectoryEntry(pending.getKey())
+					: addFileEntry(pending.getKey(), content);
+				if (result == FileVisitResult.TERMINATE)
+				{
+					cancelPendingEntries();
+					return result;
+				}
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		/**
+		 * Cancels reading of files which haven't been added.
+		 */
+		public void cancelPendingEntries()
+		{
+			for (Entry<Path, Future<byte[]>> pending : pendingEntries)
+			{
+				if (pending.getValue() != null)
+				{
+					pending.getValue().cancel(true);
+				}
+			}
+			pendingEntries.clear();
 		}
 
 		public ArchiveModificationException getArchiveModificationException()
@@ -449,16 +1406,42 @@ public class VirtualJarManager implements JarManager
 		@Override
 		public FileVisitResult preVisitDirectory(Path dir,
 			BasicFileAttributes attrs) throws IOException
+		{
+			if (dir.equals(root))
+			{
+				return FileVisitResult.CONTINUE;
+			}
+			if (executor != null)
+			{
+				pendingEntries.add(
+					new SimpleEntry<Path, Future<byte[]>>(dir,
+						null));
+				return addPendingEntries(false);
+			}
+			return addDirectoryEntry(dir);
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file,
+			BasicFileAttributes attrs) throws IOException
+		{
+			if (executor != null)
+			{
+				pendingEntries.add(
+					new SimpleEntry<Path, Future<byte[]>>(file,
+						submitFileRead(file.toFile())));
+				return addPendingEntries(false);
+			}
+			return addFileEntry(file, null);
+		}
+
+		private FileVisitResult addDirectoryEntry(Path dir)
 		{
 			try
 			{
-				if (!dir.equals(root))
-				{
-					Path relativeDir = root.relativize(dir);
-					addEntry(new JarEntry(relativeDir
-						.toString()
-						+ JarManagerUtils.ENTRY_DIRECTORY_SUFFIX));
-				}
+				Path relativeDir = root.relativize(dir);
+				addEntry(new JarEntry(relativeDir.toString()
+					+ JarManagerUtils.ENTRY_DIRECTORY_SUFFIX));
 				return FileVisitResult.CONTINUE;
 			}
 			catch (ArchiveModificationException ex)
@@ -483,15 +1466,27 @@ public class VirtualJarManager implements JarManager
 			}
 		}
 
-		@Override
-		public FileVisitResult visitFile(Path file,
-			BasicFileAttributes attrs) throws IOException
+		/**
+		 * @param content
+		 *                content read by the executor, or null to read
+		 *                the file now
+		 */
+		private FileVisitResult addFileEntry(Path file,
+			Future<byte[]> content)
 		{
 			try
 			{
 				Path relativeFile = root.relativize(file);
-				addFile(file.toFile(), JarManagerUtils
-					.convertPathToEntry(relativeFile));
+				JarEntry entry = JarManagerUtils
+					.convertPathToEntry(relativeFile);
+				if (content != null)
+				{
+					addReadFile(entry, content);
+				}
+				else
+				{
+					addFile(file.toFile(), entry);
+				}
 				return FileVisitResult.CONTINUE;
 			}
 			catch (ArchiveModificationException ex)
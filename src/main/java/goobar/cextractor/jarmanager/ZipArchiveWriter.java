@@ -0,0 +1,739 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes jar archives. Unlike {@link java.util.jar.JarOutputStream} it can
+ * write an entry whose content is already compressed (e.g. copied from
+ * another archive), so the content doesn't have to be inflated and deflated
+ * again.
+ *
+ * @author goobar
+ */
+class ZipArchiveWriter implements Closeable
+{
+
+	/**
+	 * Deflated content of at least this length is written with ZIP64
+	 * sizes, as its compressed size isn't known in advance and may exceed
+	 * 4 GB even if the content doesn't.
+	 */
+	private static final long STREAMED_ZIP64_THRESHOLD = 0xF0000000L;
+
+	private final List<ZipEntryRecord> centralDirectory;
+
+	private long centralDirectoryOffset = -1;
+
+	private boolean closed;
+
+	private CompressionPolicy compressionPolicy;
+
+	private final Deflater deflater;
+
+	private boolean firstEntry;
+
+	private final Set<String> names;
+
+	private final long offset;
+
+	private final CountingOutputStream os;
+
+	/**
+	 * @param os
+	 *                the target stream, closed when the writer is closed
+	 */
+	ZipArchiveWriter(OutputStream os)
+	{
+		this(os, 0, Collections.<ZipEntryRecord> emptyList());
+	}
+
+	/**
+	 * Creates writer which appends entries to an existing archive. The
+	 * stream has to be positioned at the end of entries data of the
+	 * archive (where its central directory starts).
+	 *
+	 * @param os
+	 *                the target stream, closed when the writer is closed
+	 * @param offset
+	 *                position of the stream in the archive
+	 * @param records
+	 *                records of the entries already in the archive, kept
+	 *                in the central directory
+	 */
+	ZipArchiveWriter(OutputStream os, long offset,
+		Collection<ZipEntryRecord> records)
+	{
+		this.os = new CountingOutputStream(
+			new BufferedOutputStream(os, 64 * 1024));
+		this.offset = offset;
+		centralDirectory = new ArrayList<ZipEntryRecord>(records);
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		names = new HashSet<String>();
+		for (ZipEntryRecord record : records)
+		{
+			names.add(record.getName());
+		}
+		firstEntry = records.isEmpty();
+	}
+
+	/**
+	 * Writes central directory and closes the target stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+		try
+		{
+			writeCentralDirectory();
+		}
+		finally
+		{
+			deflater.end();
+			os.close();
+		}
+	}
+
+	/**
+	 * @return offset of the central directory, -1 until the writer is
+	 *         closed
+	 */
+	long centralDirectoryOffset()
+	{
+		return centralDirectoryOffset;
+	}
+
+	/**
+	 * Compresses content of the entry, so it can be written later by
+	 * {@link #putCompressedEntry(JarEntry, CompressedContent)}. Content is
+	 * deflated with the given level unless it's
+	 * {@link CompressionPolicy#STORE}. Directories (and entries without
+	 * content) are stored empty. Can be called from any thread.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry, may be null
+	 * @param level
+	 *                level returned by
+	 *                {@link #compressionLevel(JarEntry, BytesWrapper, CompressionPolicy)}
+	 * @return compressed content
+	 */
+	static CompressedContent compress(JarEntry entry, BytesWrapper content,
+		int level)
+	{
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+		try
+		{
+			return compress(entry, content, level, deflater);
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry, may be null
+	 * @param policy
+	 *                compression policy, or null to deflate all content
+	 *                with the default level
+	 * @return level of the entry's content: {@link CompressionPolicy#STORE}
+	 *         if the entry's method is {@link ZipEntry#STORED}, otherwise
+	 *         the level chosen by the policy
+	 */
+	static int compressionLevel(JarEntry entry, BytesWrapper content,
+		CompressionPolicy policy)
+	{
+		if (entry.getMethod() == ZipEntry.STORED)
+		{
+			return CompressionPolicy.STORE;
+		}
+		if (policy == null || content == null || entry.isDirectory())
+		{
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+		return policy.compressionLevel(entry, content);
+	}
+
+	private static CompressedContent compress(JarEntry entry,
+		BytesWrapper content, int level, Deflater deflater)
+	{
+		if (content == null || entry.isDirectory())
+		{
+			return new CompressedContent(ZipEntry.STORED, 0, 0,
+				new byte[0]);
+		}
+		byte[] bytes = content.getBytes();
+		if (level == CompressionPolicy.STORE)
+		{
+			return new CompressedContent(ZipEntry.STORED,
+				content.crc(), bytes.length, bytes);
+		}
+		deflater.setLevel(level);
+		return new CompressedContent(ZipEntry.DEFLATED, content.crc(),
+			bytes.length, deflate(bytes, deflater));
+	}
+
+	private static byte[] deflate(byte[] bytes, Deflater deflater)
+	{
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+			Math.max(64, bytes.length / 2));
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished())
+		{
+			int length = deflater.deflate(buffer);
+			compressed.write(buffer, 0, length);
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * @return the extra field without ZIP64 extended information, which is
+	 *         written separately when it's needed
+	 */
+	private static byte[] withoutZip64(byte[] extra)
+	{
+		if (extra == null)
+		{
+			return null;
+		}
+		ByteArrayOutputStream result = new ByteArrayOutputStream(
+			extra.length);
+		for (int i = 0; i + 4 <= extra.length;)
+		{
+			int id = (extra[i] & 0xFF) | (extra[i + 1] & 0xFF) << 8;
+			int length = 4 + ((extra[i + 2] & 0xFF)
+				| (extra[i + 3] & 0xFF) << 8);
+			length = Math.min(length, extra.length - i);
+			if (id != ZipFormat.EXTID_ZIP64)
+			{
+				result.write(extra, i, length);
+			}
+			i += length;
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Writes an entry whose content has been compressed by
+	 * {@link #compress(JarEntry, BytesWrapper, int)}.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                compressed content of the entry
+	 * @throws IOException
+	 *                 thrown when entry cannot be written
+	 */
+	void putCompressedEntry(JarEntry entry, CompressedContent content)
+		throws IOException
+	{
+		ZipEntryRecord written = writeLocalHeader(entry,
+			content.getMethod(), flags(0), content.getCrc(),
+			content.getData().length, content.getSize(), false);
+		os.write(content.getData());
+		centralDirectory.add(written);
+	}
+
+	/**
+	 * Writes an entry. Content is deflated unless the entry's method is
+	 * {@link ZipEntry#STORED} or the compression policy stores it.
+	 * Directories (and entries without content) are stored empty. Content
+	 * which isn't kept on the heap is streamed, so it's never read into an
+	 * array.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry, may be null
+	 * @throws IOException
+	 *                 thrown when entry cannot be written
+	 */
+	void putEntry(JarEntry entry, BytesWrapper content) throws IOException
+	{
+		putEntry(entry, content,
+			compressionLevel(entry, content, compressionPolicy));
+	}
+
+	/**
+	 * Writes an entry like {@link #putEntry(JarEntry, BytesWrapper)}, but
+	 * with compression level which has already been chosen, so the
+	 * compression policy isn't asked again.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param content
+	 *                content of the entry, may be null
+	 * @param level
+	 *                level returned by
+	 *                {@link #compressionLevel(JarEntry, BytesWrapper, CompressionPolicy)}
+	 * @throws IOException
+	 *                 thrown when entry cannot be written
+	 */
+	void putEntry(JarEntry entry, BytesWrapper content, int level)
+		throws IOException
+	{
+		if (content != null && !entry.isDirectory()
+			&& !content.isInMemory())
+		{
+			putStreamedEntry(entry, content, level);
+			return;
+		}
+		putCompressedEntry(entry,
+			compress(entry, content, level, deflater));
+	}
+
+	/**
+	 * Writes manifest as the {@link JarFile#MANIFEST_NAME} entry.
+	 *
+	 * @param manifest
+	 *                the manifest
+	 * @throws IOException
+	 *                 thrown when manifest cannot be written
+	 */
+	void putManifest(Manifest manifest) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		manifest.write(bytes);
+		putEntry(new JarEntry(JarFile.MANIFEST_NAME),
+			new BytesWrapper(bytes.toByteArray()));
+	}
+
+	/**
+	 * Writes an entry whose content is already compressed. Method, CRC and
+	 * sizes are taken from the record, name and other attributes from the
+	 * entry.
+	 *
+	 * @param entry
+	 *                the entry
+	 * @param record
+	 *                record of the entry in the archive the content comes
+	 *                from
+	 * @param raw
+	 *                compressed content
+	 * @throws IOException
+	 *                 thrown when entry cannot be written
+	 */
+	void putRawEntry(JarEntry entry, ZipEntryRecord record, InputStream raw)
+		throws IOException
+	{
+		ZipEntryRecord written = writeLocalHeader(entry,
+			record.getMethod(), flags(record.getFlags()),
+			record.getCrc(), record.getCompressedSize(),
+			record.getSize(), false);
+		long copied = IOUtils.copyLarge(raw, os);
+		if (copied != record.getCompressedSize())
+		{
+			throw new ZipException(String.format(
+				"Invalid compressed size of entry %s: expected %d but was %d",
+				entry.getName(), record.getCompressedSize(),
+				copied));
+		}
+		centralDirectory.add(written);
+	}
+
+	/**
+	 * @return records of all entries written to the archive (including
+	 *         the ones already in the archive) in central directory order
+	 */
+	List<ZipEntryRecord> records()
+	{
+		return Collections.unmodifiableList(centralDirectory);
+	}
+
+	/**
+	 * @param compressionPolicy
+	 *                policy deciding how entries written by
+	 *                {@link #putEntry(JarEntry, BytesWrapper)} are
+	 *                compressed, or null to deflate all of them with the
+	 *                default level
+	 */
+	void setCompressionPolicy(CompressionPolicy compressionPolicy)
+	{
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	private long dosTime(JarEntry entry)
+	{
+		long time = entry.getTime();
+		return ZipFormat.javaToDosTime(
+			time != -1 ? time : System.currentTimeMillis());
+	}
+
+	/**
+	 * Extra field of the entry. Just like {@link java.util.jar.JarOutputStream}
+	 * the first entry gets the jar magic number.
+	 */
+	private byte[] extra(JarEntry entry)
+	{
+		byte[] extra = withoutZip64(entry.getExtra());
+		if (!firstEntry)
+		{
+			return extra;
+		}
+		firstEntry = false;
+		if (extra == null)
+		{
+			extra = new byte[0];
+		}
+		for (int i = 0; i + 4 <= extra.length;)
+		{
+			int id = (extra[i] & 0xFF) | (extra[i + 1] & 0xFF) << 8;
+			if (id == ZipFormat.JAR_MAGIC)
+			{
+				return extra;
+			}
+			i += 4 + ((extra[i + 2] & 0xFF)
+				| (extra[i + 3] & 0xFF) << 8);
+		}
+		byte[] result = new byte[extra.length + 4];
+		result[0] = (byte) ZipFormat.JAR_MAGIC;
+		result[1] = (byte) (ZipFormat.JAR_MAGIC >> 8);
+		System.arraycopy(extra, 0, result, 4, extra.length);
+		return result;
+	}
+
+	private int flags(int flags)
+	{
+		return flags & ~ZipFormat.DATA_DESCRIPTOR_FLAG
+			| ZipFormat.UTF8_FLAG;
+	}
+
+	private boolean isZip64(long value)
+	{
+		return value >= ZipFormat.ZIP64_MAGICVAL;
+	}
+
+	/**
+	 * @return position in the archive
+	 */
+	private long position()
+	{
+		return offset + os.getByteCount();
+	}
+
+	/**
+	 * Stored content is read twice: to calculate its CRC (unless it's
+	 * already known) and to write it. Deflated content is read once and
+	 * its CRC and sizes are written in a data descriptor following it.
+	 */
+	private void putStreamedEntry(JarEntry entry, BytesWrapper content,
+		int level) throws IOException
+	{
+		if (level == CompressionPolicy.STORE)
+		{
+			long size = content.length();
+			ZipEntryRecord written = writeLocalHeader(entry,
+				ZipEntry.STORED, flags(0), content.crc(), size,
+				size, false);
+			content.writeTo(new CloseShieldOutputStream(os));
+			centralDirectory.add(written);
+			return;
+		}
+		boolean zip64 = content.length() >= STREAMED_ZIP64_THRESHOLD;
+		ZipEntryRecord header = writeLocalHeader(entry,
+			ZipEntry.DEFLATED,
+			flags(0) | ZipFormat.DATA_DESCRIPTOR_FLAG, 0, 0, 0,
+			zip64);
+		long start = position();
+		CRC32 crc = new CRC32();
+		deflater.reset();
+		deflater.setLevel(level);
+		DeflaterOutputStream compressed = new DeflaterOutputStream(
+			new CloseShieldOutputStream(os), deflater, 8192);
+		CountingOutputStream uncompressed = new CountingOutputStream(
+			new CheckedOutputStream(compressed, crc));
+		content.writeTo(uncompressed);
+		compressed.finish();
+		long compressedSize = position() - start;
+		long size = uncompressed.getByteCount();
+		if (!zip64 && (isZip64(size) || isZip64(compressedSize)))
+		{
+			throw new ZipException(String.format(
+				"Entry %s has grown over 4 GB while being written",
+				entry.getName()));
+		}
+		writeInt(ZipFormat.EXTSIG);
+		writeInt(crc.getValue());
+		if (zip64)
+		{
+			writeLong(compressedSize);
+			writeLong(size);
+		}
+		else
+		{
+			writeInt(compressedSize);
+			writeInt(size);
+		}
+		centralDirectory.add(new ZipEntryRecord(header.getName(),
+			ZipEntry.DEFLATED, header.getFlags(),
+			header.getDosTime(), crc.getValue(), compressedSize,
+			size, header.getLocalHeaderOffset(), header.getExtra(),
+			header.getComment()));
+	}
+
+	private int version(int method, boolean zip64)
+	{
+		if (zip64)
+		{
+			return ZipFormat.VERSION_ZIP64;
+		}
+		return method == ZipEntry.STORED ? ZipFormat.VERSION_STORED
+			: ZipFormat.VERSION_DEFLATED;
+	}
+
+	private void writeCentralDirectory() throws IOException
+	{
+		long cenOffset = position();
+		centralDirectoryOffset = cenOffset;
+		for (ZipEntryRecord record : centralDirectory)
+		{
+			writeCentralHeader(record);
+		}
+		long cenSize = position() - cenOffset;
+		long count = centralDirectory.size();
+		if (count >= ZipFormat.ZIP64_MAGICCOUNT || isZip64(cenSize)
+			|| isZip64(cenOffset))
+		{
+			long zip64EndOffset = position();
+			writeInt(ZipFormat.ZIP64_ENDSIG);
+			writeLong(ZipFormat.ZIP64_ENDHDR - 12);
+			writeShort(ZipFormat.VERSION_ZIP64);
+			writeShort(ZipFormat.VERSION_ZIP64);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(cenSize);
+			writeLong(cenOffset);
+			writeInt(ZipFormat.ZIP64_LOCSIG);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+			count = Math.min(count, ZipFormat.ZIP64_MAGICCOUNT);
+			cenSize = Math.min(cenSize, ZipFormat.ZIP64_MAGICVAL);
+			cenOffset = Math.min(cenOffset, ZipFormat.ZIP64_MAGICVAL);
+		}
+		writeInt(ZipFormat.ENDSIG);
+		writeShort(0);
+		writeShort(0);
+		writeShort((int) count);
+		writeShort((int) count);
+		writeInt(cenSize);
+		writeInt(cenOffset);
+		writeShort(0);
+		os.flush();
+	}
+
+	private void writeCentralHeader(ZipEntryRecord record)
+		throws IOException
+	{
+		byte[] name = record.getName().getBytes(ZipFormat.UTF8);
+		byte[] extra = record.getExtra() != null
+			? withoutZip64(record.getExtra()) : new byte[0];
+		byte[] comment = record.getComment() != null
+			? record.getComment().getBytes(ZipFormat.UTF8)
+			: new byte[0];
+		ByteArrayOutputStream zip64 = new ByteArrayOutputStream();
+		long size = record.getSize();
+		long compressedSize = record.getCompressedSize();
+		long offset = record.getLocalHeaderOffset();
+		if (isZip64(size))
+		{
+			writeLong(zip64, size);
+			size = ZipFormat.ZIP64_MAGICVAL;
+		}
+		if (isZip64(compressedSize))
+		{
+			writeLong(zip64, compressedSize);
+			compressedSize = ZipFormat.ZIP64_MAGICVAL;
+		}
+		if (isZip64(offset))
+		{
+			writeLong(zip64, offset);
+			offset = ZipFormat.ZIP64_MAGICVAL;
+		}
+		int zip64Length = zip64.size() > 0 ? zip64.size() + 4 : 0;
+		int version = version(record.getMethod(), zip64Length > 0);
+		writeInt(ZipFormat.CENSIG);
+		writeShort(version);
+		writeShort(version);
+		writeShort(record.getFlags());
+		writeShort(record.getMethod());
+		writeInt(record.getDosTime());
+		writeInt(record.getCrc());
+		writeInt(compressedSize);
+		writeInt(size);
+		writeShort(name.length);
+		writeShort(extra.length + zip64Length);
+		writeShort(comment.length);
+		writeShort(0);
+		writeShort(0);
+		writeInt(0);
+		writeInt(offset);
+		os.write(name);
+		if (zip64Length > 0)
+		{
+			writeShort(ZipFormat.EXTID_ZIP64);
+			writeShort(zip64.size());
+			zip64.writeTo(os);
+		}
+		os.write(extra);
+		os.write(comment);
+	}
+
+	private void writeInt(long value) throws IOException
+	{
+		writeShort((int) (value & 0xFFFF));
+		writeShort((int) ((value >> 16) & 0xFFFF));
+	}
+
+	/**
+	 * @param zip64
+	 *                whether ZIP64 sizes should be written even if the
+	 *                given sizes don't need them
+	 * @return record of the written entry, to be added to the central
+	 *         directory
+	 */
+	private ZipEntryRecord writeLocalHeader(JarEntry entry, int method,
+		int flags, long crc, long compressedSize, long size,
+		boolean zip64) throws IOException
+	{
+		if (!names.add(entry.getName()))
+		{
+			throw new ZipException(
+				"duplicate entry: " + entry.getName());
+		}
+		ZipEntryRecord record = new ZipEntryRecord(entry.getName(),
+			method, flags, dosTime(entry), crc,
+			compressedSize, size, position(), extra(entry),
+			entry.getComment());
+		byte[] name = entry.getName().getBytes(ZipFormat.UTF8);
+		byte[] extra = record.getExtra() != null ? record.getExtra()
+			: new byte[0];
+		zip64 |= isZip64(size) || isZip64(compressedSize);
+		writeInt(ZipFormat.LOCSIG);
+		writeShort(version(method, zip64));
+		writeShort(record.getFlags());
+		writeShort(method);
+		writeInt(record.getDosTime());
+		writeInt(crc);
+		writeInt(zip64 ? ZipFormat.ZIP64_MAGICVAL : compressedSize);
+		writeInt(zip64 ? ZipFormat.ZIP64_MAGICVAL : size);
+		writeShort(name.length);
+		writeShort(extra.length + (zip64 ? 20 : 0));
+		os.write(name);
+		if (zip64)
+		{
+			writeShort(ZipFormat.EXTID_ZIP64);
+			writeShort(16);
+			writeLong(size);
+			writeLong(compressedSize);
+		}
+		os.write(extra);
+		return record;
+	}
+
+	private void writeLong(long value) throws IOException
+	{
+		writeLong(os, value);
+	}
+
+	private void writeLong(OutputStream out, long value)
+		throws IOException
+	{
+		for (int i = 0; i < 8; i++)
+		{
+			out.write((int) (value >> (8 * i)) & 0xFF);
+		}
+	}
+
+	private void writeShort(int value) throws IOException
+	{
+		os.write(value & 0xFF);
+		os.write((value >> 8) & 0xFF);
+	}
+
+	/**
+	 * Content of an entry prepared to be written: compressed (or stored)
+	 * with its CRC and uncompressed size.
+	 */
+	static class CompressedContent
+	{
+
+		private final long crc;
+
+		private final byte[] data;
+
+		private final int method;
+
+		private final long size;
+
+		CompressedContent(int method, long crc, long size, byte[] data)
+		{
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.data = data;
+		}
+
+		long getCrc()
+		{
+			return crc;
+		}
+
+		byte[] getData()
+		{
+			return data;
+		}
+
+		int getMethod()
+		{
+			return method;
+		}
+
+		long getSize()
+		{
+			return size;
+		}
+	}
+}
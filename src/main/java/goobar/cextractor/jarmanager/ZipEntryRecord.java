@@ -0,0 +1,181 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.jar.JarEntry;
+import java.util.zip.ZipEntry;
+
+/**
+ * Entry of an archive as described by its central directory. Besides the
+ * usual entry attributes it knows where compressed content of the entry is
+ * located in the archive, so the content can be copied without inflating it.
+ *
+ * @author goobar
+ */
+class ZipEntryRecord
+{
+
+	private final String comment;
+
+	private final long compressedSize;
+
+	private final long crc;
+
+	private long dataOffset = -1;
+
+	private final long dosTime;
+
+	private final byte[] extra;
+
+	private final int flags;
+
+	private final long localHeaderOffset;
+
+	private final int method;
+
+	private final String name;
+
+	private final long size;
+
+	@SuppressWarnings("javadoc")
+	ZipEntryRecord(String name, int method, int flags, long dosTime,
+		long crc, long compressedSize, long size, long localHeaderOffset,
+		byte[] extra, String comment)
+	{
+		this.name = name;
+		this.method = method;
+		this.flags = flags;
+		this.dosTime = dosTime;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.size = size;
+		this.localHeaderOffset = localHeaderOffset;
+		this.extra = extra;
+		this.comment = comment;
+	}
+
+	/**
+	 * @return the comment
+	 */
+	String getComment()
+	{
+		return comment;
+	}
+
+	/**
+	 * @return the compressedSize
+	 */
+	long getCompressedSize()
+	{
+		return compressedSize;
+	}
+
+	/**
+	 * @return the crc
+	 */
+	long getCrc()
+	{
+		return crc;
+	}
+
+	/**
+	 * @return offset of compressed content in the archive, or -1 if it's
+	 *         not known yet (local header hasn't been read)
+	 */
+	long getDataOffset()
+	{
+		return dataOffset;
+	}
+
+	/**
+	 * @return the dosTime
+	 */
+	long getDosTime()
+	{
+		return dosTime;
+	}
+
+	/**
+	 * @return the extra
+	 */
+	byte[] getExtra()
+	{
+		return extra;
+	}
+
+	/**
+	 * @return the flags
+	 */
+	int getFlags()
+	{
+		return flags;
+	}
+
+	/**
+	 * @return the localHeaderOffset
+	 */
+	long getLocalHeaderOffset()
+	{
+		return localHeaderOffset;
+	}
+
+	/**
+	 * @return the method
+	 */
+	int getMethod()
+	{
+		return method;
+	}
+
+	/**
+	 * @return the name
+	 */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the size
+	 */
+	long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @param dataOffset
+	 *                the dataOffset to set
+	 */
+	void setDataOffset(long dataOffset)
+	{
+		this.dataOffset = dataOffset;
+	}
+
+	/**
+	 * @return new jar entry with attributes of this record
+	 */
+	JarEntry toJarEntry()
+	{
+		JarEntry entry = new JarEntry(name);
+		entry.setTime(ZipFormat.dosToJavaTime(dosTime));
+		if (extra != null)
+		{
+			entry.setExtra(extra);
+		}
+		if (comment != null)
+		{
+			entry.setComment(comment);
+		}
+		if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED)
+		{
+			entry.setMethod(method);
+		}
+		entry.setCrc(crc);
+		entry.setSize(size);
+		entry.setCompressedSize(compressedSize);
+		return entry;
+	}
+}
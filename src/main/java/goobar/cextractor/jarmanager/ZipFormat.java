@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Constants and helpers of the ZIP file format used when archives are read
+ * and written without {@link java.util.zip.ZipFile} and
+ * {@link java.util.zip.ZipOutputStream} (which don't give access to
+ * compressed content of entries).
+ *
+ * @author goobar
+ */
+final class ZipFormat
+{
+
+	static final int CENHDR = 46;
+
+	static final int CENSIG = 0x02014b50;
+
+	static final int DATA_DESCRIPTOR_FLAG = 0x08;
+
+	static final long DOSTIME_BEFORE_1980 = (1 << 21) | (1 << 16);
+
+	static final int ENDHDR = 22;
+
+	static final int ENDSIG = 0x06054b50;
+
+	static final int EXTID_ZIP64 = 0x0001;
+
+	static final int EXTSIG = 0x08074b50;
+
+	static final int JAR_MAGIC = 0xCAFE;
+
+	static final int LOCHDR = 30;
+
+	static final int LOCSIG = 0x04034b50;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int UTF8_FLAG = 0x800;
+
+	static final int VERSION_DEFLATED = 20;
+
+	static final int VERSION_STORED = 10;
+
+	static final int VERSION_ZIP64 = 45;
+
+	static final int ZIP64_ENDHDR = 56;
+
+	static final int ZIP64_ENDSIG = 0x06064b50;
+
+	static final int ZIP64_LOCHDR = 20;
+
+	static final int ZIP64_LOCSIG = 0x07064b50;
+
+	static final long ZIP64_MAGICCOUNT = 0xFFFF;
+
+	static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+
+	private ZipFormat()
+	{
+	}
+
+	/**
+	 * Converts DOS date and time (local time zone) to Java time.
+	 */
+	static long dosToJavaTime(long dosTime)
+	{
+		Calendar calendar = new GregorianCalendar(
+			(int) (((dosTime >> 25) & 0x7f) + 1980),
+			(int) (((dosTime >> 21) & 0x0f) - 1),
+			(int) ((dosTime >> 16) & 0x1f),
+			(int) ((dosTime >> 11) & 0x1f),
+			(int) ((dosTime >> 5) & 0x3f),
+			(int) ((dosTime << 1) & 0x3e));
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Converts Java time to DOS date and time (local time zone).
+	 */
+	static long javaToDosTime(long time)
+	{
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+		{
+			return DOSTIME_BEFORE_1980;
+		}
+		return (year - 1980) << 25
+			| (calendar.get(Calendar.MONTH) + 1) << 21
+			| calendar.get(Calendar.DAY_OF_MONTH) << 16
+			| calendar.get(Calendar.HOUR_OF_DAY) << 11
+			| calendar.get(Calendar.MINUTE) << 5
+			| calendar.get(Calendar.SECOND) >> 1;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class ArchiveDiffTest
+{
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File testJarFile;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		testJarFile = new File(tempFolder.getRoot(), "test.jar");
+	}
+
+	@Test
+	public void should_CompareArchives() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.generateManifestFlag(false);
+		jarManager.addContent(new JarEntry("path/changed.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.addContent(new JarEntry("path/removed.txt"),
+			new BytesWrapper("removed".getBytes()));
+		jarManager.addContent(new JarEntry("path/same.txt"),
+			new BytesWrapper("same".getBytes()));
+		jarManager.save();
+		File newJarFile = new File(tempFolder.newFolder("new"),
+			testJarFile.getName());
+		FileJarManager newJarManager = jarManager.snapshot(newJarFile);
+		newJarManager.removeEntry("path/changed.txt");
+		newJarManager.addContent(new JarEntry("path/changed.txt"),
+			new BytesWrapper("changed".getBytes()));
+		newJarManager.removeEntry("path/removed.txt");
+		newJarManager.addContent(new JarEntry("path/added.txt"),
+			new BytesWrapper("added".getBytes()));
+		newJarManager.save();
+
+		// when
+		ArchiveDiff diff = ArchiveDiff.compare(testJarFile, newJarFile);
+		ArchiveDiff contentDiff = ArchiveDiff.compare(testJarFile,
+			newJarFile, true);
+		ArchiveDiff sameDiff = ArchiveDiff.compare(testJarFile,
+			testJarFile, true);
+
+		// then
+		for (ArchiveDiff archiveDiff : Arrays.asList(diff, contentDiff))
+		{
+			assertEquals(Arrays.asList("path/added.txt"),
+				archiveDiff.getAdded());
+			assertEquals(Arrays.asList("path/changed.txt"),
+				archiveDiff.getChanged());
+			assertEquals(Arrays.asList("path/removed.txt"),
+				archiveDiff.getRemoved());
+		}
+		assertTrue(sameDiff.isEmpty());
+	}
+}
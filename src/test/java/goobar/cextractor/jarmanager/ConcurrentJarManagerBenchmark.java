@@ -0,0 +1,152 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+
+/**
+ * Multithreaded benchmark of {@link ConcurrentJarManager} entry operations.
+ * It is not a unit test (it isn't run by the build); run its main method to
+ * compare throughput of N threads adding, finding and removing their own
+ * entries in a {@link ConcurrentJarManager} and in a
+ * {@link VirtualJarManager} guarded by a single lock. Throughput of the
+ * concurrent manager should grow with the number of threads (up to the
+ * number of cores), while the locked one should stay flat or drop.
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class ConcurrentJarManagerBenchmark
+{
+
+	private static final int ENTRIES_PER_THREAD = 100000;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	public static void main(String[] args) throws Exception
+	{
+		// warm up
+		run(new ConcurrentJarManager(), THREADS[THREADS.length - 1]);
+		run(new LockedJarManager(), THREADS[THREADS.length - 1]);
+		System.out.println(String.format("%10s %18s %18s", "threads",
+			"concurrent ops/ms", "locked ops/ms"));
+		for (int threads : THREADS)
+		{
+			long operations = 3L * threads * ENTRIES_PER_THREAD;
+			long concurrent = run(new ConcurrentJarManager(), threads);
+			long locked = run(new LockedJarManager(), threads);
+			System.out.println(String.format("%10d %18d %18d",
+				threads, operations * 1000000 / concurrent,
+				operations * 1000000 / locked));
+		}
+	}
+
+	private static String entryName(int thread, int i)
+	{
+		return "thread" + thread + "/dir" + i % 100 + "/entry" + i
+			+ ".txt";
+	}
+
+	/**
+	 * @return time in nanoseconds all threads took to add, find and remove
+	 *         their entries
+	 */
+	private static long run(final JarManager jarManager, int threads)
+		throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++)
+			{
+				final int thread = t;
+				tasks.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						start.await();
+						work(jarManager, thread);
+						return null;
+					}
+				}));
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			for (Future<Void> task : tasks)
+			{
+				task.get();
+			}
+			return System.nanoTime() - startTime;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static void work(JarManager jarManager, int thread)
+		throws Exception
+	{
+		BytesWrapper content = new BytesWrapper(new byte[0]);
+		for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+		{
+			jarManager.addContent(new JarEntry(entryName(thread, i)),
+				content);
+		}
+		for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+		{
+			if (jarManager.findEntryByName(entryName(thread, i)) == null)
+			{
+				throw new IllegalStateException("Missing entry "
+					+ entryName(thread, i));
+			}
+		}
+		for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+		{
+			jarManager.removeEntry(entryName(thread, i));
+		}
+	}
+
+	/**
+	 * {@link VirtualJarManager} whose benchmarked operations hold a single
+	 * lock, the way it has to be shared by several threads.
+	 */
+	private static class LockedJarManager extends VirtualJarManager
+	{
+
+		@Override
+		public synchronized void addContent(JarEntry entry,
+			BytesWrapper bytes) throws ArchiveModificationException,
+			EntryDuplicatedException
+		{
+			super.addContent(entry, bytes);
+		}
+
+		@Override
+		public synchronized Entry<JarEntry, BytesWrapper> findEntryByName(
+			String entryName) throws ArchiveReadException
+		{
+			return super.findEntryByName(entryName);
+		}
+
+		@Override
+		public synchronized void removeEntry(String entryName)
+			throws ArchiveModificationException
+		{
+			super.removeEntry(entryName);
+		}
+	}
+}
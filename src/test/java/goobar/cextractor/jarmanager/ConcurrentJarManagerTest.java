@@ -0,0 +1,86 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import org.junit.Test;
+
+/**
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class ConcurrentJarManagerTest
+{
+
+	@Test
+	public void should_AddEntriesConcurrently() throws Exception
+	{
+		// given
+		final ConcurrentJarManager jarManager = new ConcurrentJarManager();
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicInteger duplicated = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+
+		// when
+		try
+		{
+			for (int thread = 0; thread < 8; thread++)
+			{
+				tasks.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						for (int i = 0; i < 1000; i++)
+						{
+							try
+							{
+								jarManager.addContent(
+									new JarEntry("entry" + i),
+									new BytesWrapper(new byte[] {
+										(byte) i }));
+								added.incrementAndGet();
+							}
+							catch (EntryDuplicatedException ex)
+							{
+								duplicated.incrementAndGet();
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> task : tasks)
+			{
+				task.get();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// then
+		assertEquals(1000, added.get());
+		assertEquals(7000, duplicated.get());
+		List<JarEntry> entries = jarManager.entries();
+		assertEquals(1000, entries.size());
+		assertEquals("entry999",
+			entries.get(entries.size() - 1).getName());
+		jarManager.removeEntry("entry0");
+		assertNull(jarManager.findEntryByName("entry0"));
+	}
+}
@@ -5,22 +5,44 @@
 package goobar.cextractor.jarmanager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
@@ -87,6 +109,170 @@ public class FileJarManagerTest
 			jarManager.findEntryByName(entry).getValue());
 	}
 
+	@Test
+	public void should_DeleteBufferedStreamContent() throws Exception
+	{
+		// given
+		byte[] content = new byte[2 * 1024 * 1024];
+		VirtualJarManager jarManager = new VirtualJarManager();
+		jarManager.addStreamContent(new JarEntry("removed.bin"),
+			new ByteArrayInputStream(content));
+		jarManager.addStreamContent(new JarEntry("kept.bin"),
+			new ByteArrayInputStream(content));
+		File removedFile = ((FileRegionBytesWrapper) jarManager
+			.findEntryByName("removed.bin").getValue()).getFile();
+		File keptFile = ((FileRegionBytesWrapper) jarManager
+			.findEntryByName("kept.bin").getValue()).getFile();
+
+		// when
+		jarManager.removeEntry("removed.bin");
+
+		// then
+		assertFalse(removedFile.exists());
+		assertTrue(keptFile.exists());
+		jarManager.close();
+		assertFalse(keptFile.exists());
+	}
+
+	@Test
+	public void should_AddContentFromStreamAndSupplier() throws Exception
+	{
+		// given
+		final byte[] content = new byte[3 * 1024 * 1024];
+		for (int i = 0; i < content.length; i++)
+		{
+			content[i] = (byte) (i % 251);
+		}
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+
+		// when
+		jarManager.addStreamContent(new JarEntry("stream.bin"),
+			new ByteArrayInputStream(content));
+		jarManager.addSuppliedContent(new JarEntry("supplied.bin"),
+			new ContentSupplier()
+			{
+				@Override
+				public InputStream openStream()
+				{
+					return new ByteArrayInputStream(content);
+				}
+			});
+		jarManager.save();
+
+		// then
+		try (FileJarManager reopened = new FileJarManager(testJarFile,
+			true))
+		{
+			for (String name : Arrays.asList("stream.bin",
+				"supplied.bin"))
+			{
+				try (InputStream is = reopened
+					.openEntryStream(name))
+				{
+					assertTrue(Arrays.equals(content,
+						IOUtils.toByteArray(is)));
+				}
+			}
+			assertNull(reopened.openEntryStream("missing.bin"));
+		}
+	}
+
+	@Test
+	public void should_SaveStoredEntryWithCachedCrc() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		BytesWrapper content = new BytesWrapper("content".getBytes());
+		long originalCrc = content.crc();
+		content.setBytes("changed content".getBytes());
+		JarEntry entry = new JarEntry("stored.txt");
+		entry.setMethod(ZipEntry.STORED);
+		jarManager.addContent(entry, content);
+
+		// when
+		jarManager.save();
+
+		// then
+		CRC32 crc = new CRC32();
+		crc.update("changed content".getBytes());
+		assertTrue(originalCrc != content.crc());
+		assertEquals(crc.getValue(), content.crc());
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			ZipEntry savedEntry = jarFile.getEntry("stored.txt");
+			assertEquals(ZipEntry.STORED, savedEntry.getMethod());
+			assertEquals(crc.getValue(), savedEntry.getCrc());
+			assertEquals("changed content", IOUtils.toString(
+				jarFile.getInputStream(savedEntry)));
+		}
+	}
+
+	@Test
+	public void should_AddEntriesAllOrNothing() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("existing.txt"),
+			new BytesWrapper("existing".getBytes()));
+		List<Entry<JarEntry, BytesWrapper>> entries = new ArrayList<Entry<JarEntry, BytesWrapper>>();
+		entries.add(new SimpleEntry<JarEntry, BytesWrapper>(
+			new JarEntry("path/"), null));
+		entries.add(new SimpleEntry<JarEntry, BytesWrapper>(
+			new JarEntry("path/first.txt"),
+			new BytesWrapper("first".getBytes())));
+		entries.add(new SimpleEntry<JarEntry, BytesWrapper>(
+			new JarEntry("existing.txt"),
+			new BytesWrapper("second".getBytes())));
+
+		// when
+		try
+		{
+			jarManager.addEntries(entries);
+			fail("Duplicated entry was added");
+		}
+		catch (EntryDuplicatedException ex)
+		{
+			// expected
+		}
+		entries.remove(2);
+		jarManager.addEntries(entries);
+
+		// then
+		List<String> entryNames = new ArrayList<String>();
+		for (JarEntry entry : jarManager.entries())
+		{
+			entryNames.add(entry.getName());
+		}
+		assertEquals(Arrays.asList("existing.txt", "path/",
+			"path/first.txt"), entryNames);
+	}
+
+	@Test
+	public void should_NotAddEntriesWithoutContent() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		List<Entry<JarEntry, BytesWrapper>> entries = new ArrayList<Entry<JarEntry, BytesWrapper>>();
+		entries.add(new SimpleEntry<JarEntry, BytesWrapper>(
+			new JarEntry("path/"), null));
+		entries.add(new SimpleEntry<JarEntry, BytesWrapper>(
+			new JarEntry("path/first.txt"), null));
+
+		// when
+		try
+		{
+			jarManager.addEntries(entries);
+			fail("Entry without content was added");
+		}
+		catch (ArchiveModificationException ex)
+		{
+			// expected
+		}
+
+		// then
+		assertTrue(jarManager.entries().isEmpty());
+	}
+
 	@Test
 	public void should_AddDirectoryContent() throws Exception
 	{
@@ -120,6 +306,77 @@ public class FileJarManagerTest
 			.getValue());
 	}
 
+	@Test
+	public void should_AddDirectoryContentInParallel() throws Exception
+	{
+		// given
+		Path testDir = tempFolder.newFolder("testDir").toPath();
+		for (int i = 0; i < 20; i++)
+		{
+			Path nestedDir = Files.createDirectories(
+				testDir.resolve("dir" + i).resolve("nested"));
+			for (int j = 0; j < 30; j++)
+			{
+				Files.write(nestedDir.resolve("file" + j + ".txt"),
+					("content " + i + " " + j).getBytes());
+			}
+		}
+		VirtualJarManager sequentialJarManager = new VirtualJarManager();
+		VirtualJarManager parallelJarManager = new VirtualJarManager();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		parallelJarManager.setExecutor(executor);
+
+		// when
+		sequentialJarManager.addDirectory(testDir);
+		try
+		{
+			parallelJarManager.addDirectory(testDir);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// then
+		List<Entry<JarEntry, BytesWrapper>> expected = sequentialJarManager
+			.entriesWithContent();
+		List<Entry<JarEntry, BytesWrapper>> actual = parallelJarManager
+			.entriesWithContent();
+		assertEquals(20 * 32, actual.size());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertEquals(expected.get(i).getKey().getName(),
+				actual.get(i).getKey().getName());
+			assertEquals(expected.get(i).getValue(),
+				actual.get(i).getValue());
+		}
+	}
+
+	@Test(expected = EntryDuplicatedException.class)
+	public void should_ThrowException_When_FileAddedInParallelIsDuplicated()
+		throws Exception
+	{
+		// given
+		Path testDir = tempFolder.newFolder("testDir").toPath();
+		Files.write(testDir.resolve("file.txt"), "content".getBytes());
+		VirtualJarManager jarManager = new VirtualJarManager();
+		jarManager.addContent(new JarEntry("file.txt"),
+			new BytesWrapper("content".getBytes()));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		jarManager.setExecutor(executor);
+
+		// when
+		try
+		{
+			jarManager.addDirectory(testDir);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void should_AddFile() throws IOException,
 		ArchiveModificationException, FileNotFoundException,
@@ -193,6 +450,38 @@ public class FileJarManagerTest
 			"goobar/cextractor/jarmanager/testpackage/ClassC.class"));
 	}
 
+	@Test
+	public void should_AddPackageAndClassFromJar() throws Exception
+	{
+		// given
+		FileJarManager classesJarManager = new FileJarManager(testJarFile);
+		classesJarManager.addPackage(ClassA.class);
+		classesJarManager.save();
+		JarManager packageJarManager = new VirtualJarManager();
+		JarManager classJarManager = new VirtualJarManager();
+
+		// when
+		try (URLClassLoader classLoader = new URLClassLoader(
+			new URL[] { testJarFile.toURI().toURL() }, null))
+		{
+			Class<?> classA = classLoader
+				.loadClass(ClassA.class.getName());
+			packageJarManager.addPackage(classA);
+			classJarManager.addClass(classA);
+		}
+
+		// then
+		assertEquals(4, packageJarManager.entries().size());
+		assertNotNull(packageJarManager.findEntryByName(
+			"goobar/cextractor/jarmanager/testpackage/ClassC.class"));
+		assertEquals(2, classJarManager.entries().size());
+		assertEquals(classesJarManager.findEntryByName(
+			"goobar/cextractor/jarmanager/testpackage/ClassA.class")
+			.getValue(), classJarManager.findEntryByName(
+				"goobar/cextractor/jarmanager/testpackage/ClassA.class")
+				.getValue());
+	}
+
 	@Test
 	public void should_ExtractArchive() throws Exception
 	{
@@ -210,6 +499,808 @@ public class FileJarManagerTest
 			.resolve("path1").resolve("test.txt")));
 	}
 
+	@Test
+	public void should_SaveAndExtractAsynchronously() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		Path extractDir = tempFolder.newFolder("extract-dir").toPath();
+		FileJarManager failingJarManager = new FileJarManager(new File(
+			tempFolder.getRoot(), "missing/test.jar"));
+
+		// when
+		Future<Void> failed = failingJarManager.saveAsync();
+		jarManager.saveAsync().get();
+		jarManager.extractAsync(extractDir).get();
+
+		// then
+		assertTrue(testJarFile.isFile());
+		assertEquals("content", new String(Files.readAllBytes(
+			extractDir.resolve("path").resolve("test.txt"))));
+		try
+		{
+			failed.get();
+			fail("Archive was saved to a missing directory");
+		}
+		catch (ExecutionException ex)
+		{
+			assertTrue(ex.getCause() instanceof ArchiveModificationException);
+		}
+	}
+
+	@Test
+	public void should_ExtractArchiveInParallel() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addEntry(new JarEntry("dir/"));
+		for (int i = 0; i < 100; i++)
+		{
+			jarManager.addContent(
+				new JarEntry("dir/sub" + i % 10 + "/file" + i),
+				new BytesWrapper(("content" + i).getBytes()));
+		}
+		jarManager.addContent(new JarEntry("top/file"),
+			new BytesWrapper("top".getBytes()));
+		Path extractDir = tempFolder.newFolder("extract-dir").toPath();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		((FileJarManager) jarManager).setExecutor(executor);
+
+		// when
+		try
+		{
+			jarManager.extract(extractDir);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// then
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals("content" + i, new String(Files.readAllBytes(
+				extractDir.resolve("dir").resolve("sub" + i % 10)
+					.resolve("file" + i))));
+		}
+		assertTrue(Files.exists(extractDir.resolve("top/file")));
+	}
+
+	@Test
+	public void should_ExtractStoredEntryOfArchiveOpenedLazily()
+		throws Exception
+	{
+		// given
+		byte[] content = "stored content".getBytes();
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		JarEntry storedEntry = new JarEntry("path/stored.bin");
+		storedEntry.setMethod(ZipEntry.STORED);
+		storedEntry.setSize(content.length);
+		storedEntry.setCrc(crc.getValue());
+		try (JarOutputStream jarOS = new JarOutputStream(
+			new FileOutputStream(testJarFile)))
+		{
+			jarOS.putNextEntry(storedEntry);
+			jarOS.write(content);
+			jarOS.closeEntry();
+		}
+		Path extractDir = tempFolder.newFolder("extract-dir").toPath();
+
+		// when
+		try (FileJarManager jarManager = new FileJarManager(testJarFile,
+			true))
+		{
+			jarManager.extract(extractDir);
+		}
+
+		// then
+		assertTrue(Arrays.equals(content, Files.readAllBytes(
+			extractDir.resolve("path").resolve("stored.bin"))));
+	}
+
+	@Test
+	public void should_KeepEntriesInInsertionOrder() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		List<String> names = Arrays.asList("c.txt", "a.txt", "b/",
+			"b/d.txt");
+
+		// when
+		for (String name : names)
+		{
+			JarEntry entry = new JarEntry(name);
+			if (entry.isDirectory())
+			{
+				jarManager.addEntry(entry);
+			}
+			else
+			{
+				jarManager.addContent(entry,
+					new BytesWrapper(name.getBytes()));
+			}
+		}
+
+		// then
+		List<JarEntry> entries = jarManager.entries();
+		assertEquals(names.size(), entries.size());
+		for (int i = 0; i < names.size(); i++)
+		{
+			assertEquals(names.get(i), entries.get(i).getName());
+		}
+	}
+
+	@Test
+	public void should_CopyUnchangedEntriesWithoutRecompression()
+		throws Exception
+	{
+		// given
+		// archive with an entry deflated without compression
+		byte[] content = new byte[10000];
+		try (JarOutputStream jarOS = new JarOutputStream(
+			new FileOutputStream(testJarFile)))
+		{
+			jarOS.setLevel(Deflater.NO_COMPRESSION);
+			jarOS.putNextEntry(new JarEntry("unchanged.bin"));
+			jarOS.write(content);
+			jarOS.closeEntry();
+		}
+		long compressedSize;
+		try (JarFile jarArchive = new JarFile(testJarFile))
+		{
+			compressedSize = jarArchive.getEntry("unchanged.bin")
+				.getCompressedSize();
+		}
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.generateManifestFlag(false);
+
+		// when
+		jarManager.addContent(new JarEntry("changed.bin"),
+			new BytesWrapper(content));
+		jarManager.save();
+
+		// then
+		try (JarFile jarArchive = new JarFile(testJarFile))
+		{
+			assertEquals(compressedSize, jarArchive
+				.getEntry("unchanged.bin").getCompressedSize());
+			assertTrue(jarArchive.getEntry("changed.bin")
+				.getCompressedSize() < compressedSize);
+			assertTrue(Arrays.equals(content,
+				IOUtils.toByteArray(jarArchive.getInputStream(
+					jarArchive.getEntry(
+						"unchanged.bin")))));
+		}
+	}
+
+	@Test
+	public void should_SaveContentExceedingMemoryBudget() throws Exception
+	{
+		// given
+		List<byte[]> contents = new ArrayList<byte[]>();
+		try (FileJarManager jarManager = new FileJarManager(testJarFile))
+		{
+			jarManager.setMemoryBudget(64 * 1024);
+			for (int i = 0; i < 20; i++)
+			{
+				byte[] content = new byte[16 * 1024];
+				Arrays.fill(content, (byte) i);
+				contents.add(content);
+				jarManager.addContent(new JarEntry("entry" + i),
+					new BytesWrapper(content.clone()));
+			}
+			byte[] replaced = "replaced".getBytes();
+			jarManager.findEntryByName("entry0").getValue()
+				.setBytes(replaced);
+			contents.set(0, replaced);
+
+			// when
+			jarManager.save();
+		}
+
+		// then
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			for (int i = 0; i < contents.size(); i++)
+			{
+				assertTrue(Arrays.equals(contents.get(i),
+					IOUtils.toByteArray(jarFile.getInputStream(
+						jarFile.getEntry("entry" + i)))));
+			}
+		}
+	}
+
+	@Test
+	public void should_SaveInParallel() throws Exception
+	{
+		// given
+		File sequentialJarFile = new File(tempFolder.getRoot(),
+			"sequential.jar");
+		FileJarManager sequentialJarManager = new FileJarManager(
+			sequentialJarFile);
+		FileJarManager parallelJarManager = new FileJarManager(
+			testJarFile);
+		for (int i = 0; i < 1000; i++)
+		{
+			JarEntry entry = new JarEntry("path/entry" + i + ".txt");
+			entry.setTime(0);
+			BytesWrapper content = new BytesWrapper(
+				("content of entry " + i).getBytes());
+			sequentialJarManager.addContent(entry, content);
+			parallelJarManager.addContent(entry, content);
+		}
+		Manifest manifest = new Manifest();
+		sequentialJarManager.addManifest(manifest);
+		parallelJarManager.addManifest(manifest);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		parallelJarManager.setExecutor(executor);
+
+		// when
+		try
+		{
+			sequentialJarManager.save();
+			parallelJarManager.save();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// then
+		assertTrue(Arrays.equals(
+			Files.readAllBytes(sequentialJarFile.toPath()),
+			Files.readAllBytes(testJarFile.toPath())));
+	}
+
+	@Test
+	public void should_DeduplicateIdenticalContent() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.setDeduplication(true);
+		jarManager.setCompressIdenticalContentOnce(true);
+		for (int i = 0; i < 3; i++)
+		{
+			jarManager.addContent(new JarEntry("path/entry" + i + ".txt"),
+				new BytesWrapper("shared content".getBytes()));
+		}
+		jarManager.addContent(new JarEntry("path/other.txt"),
+			new BytesWrapper("other content".getBytes()));
+
+		// when
+		jarManager.save();
+
+		// then
+		assertEquals(2 * "shared content".length(),
+			jarManager.getDeduplicatedBytes());
+		assertSame(jarManager.findEntryByName("path/entry0.txt")
+			.getValue().getBytes(),
+			jarManager.findEntryByName("path/entry2.txt").getValue()
+				.getBytes());
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				assertEquals("shared content",
+					IOUtils.toString(jarFile.getInputStream(
+						jarFile.getEntry("path/entry" + i
+							+ ".txt"))));
+			}
+			assertEquals("other content", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/other.txt"))));
+		}
+	}
+
+	@Test
+	public void should_AskCompressionPolicyOncePerEntry() throws Exception
+	{
+		// given
+		final List<String> askedEntryNames = new ArrayList<String>();
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.setCompressIdenticalContentOnce(true);
+		jarManager.setCompressionPolicy(new CompressionPolicy()
+		{
+			@Override
+			public int compressionLevel(JarEntry entry,
+				BytesWrapper content)
+			{
+				askedEntryNames.add(entry.getName());
+				return Deflater.BEST_SPEED;
+			}
+		});
+		BytesWrapper shared = new BytesWrapper("shared".getBytes());
+		jarManager.addContent(new JarEntry("first.txt"), shared);
+		jarManager.addContent(new JarEntry("second.txt"), shared);
+		jarManager.addContent(new JarEntry("unique.txt"),
+			new BytesWrapper("unique".getBytes()));
+
+		// when
+		jarManager.save();
+
+		// then
+		for (String name : Arrays.asList("first.txt", "second.txt",
+			"unique.txt"))
+		{
+			assertEquals(1, Collections.frequency(askedEntryNames, name));
+		}
+	}
+
+	@Test
+	public void should_StoreCompressedContent() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.setCompressionPolicy(new SkipCompressedContentPolicy());
+		byte[] text = new byte[16 * 1024];
+		Arrays.fill(text, (byte) 'a');
+		byte[] random = new byte[16 * 1024];
+		new Random(0).nextBytes(random);
+		jarManager.addContent(new JarEntry("image.png"),
+			new BytesWrapper(text));
+		jarManager.addContent(new JarEntry("random.bin"),
+			new BytesWrapper(random));
+		jarManager.addContent(new JarEntry("text.txt"),
+			new BytesWrapper(text));
+
+		// when
+		jarManager.save();
+
+		// then
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertEquals(ZipEntry.STORED,
+				jarFile.getEntry("image.png").getMethod());
+			assertEquals(ZipEntry.STORED,
+				jarFile.getEntry("random.bin").getMethod());
+			assertEquals(ZipEntry.DEFLATED,
+				jarFile.getEntry("text.txt").getMethod());
+			assertTrue(Arrays.equals(random, IOUtils.toByteArray(
+				jarFile.getInputStream(jarFile
+					.getEntry("random.bin")))));
+		}
+	}
+
+	@Test
+	public void should_ReadContentLazily() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		BytesWrapper content = new BytesWrapper("content".getBytes());
+		jarManager.addContent(new JarEntry("path/test.txt"), content);
+		jarManager.save();
+
+		// when
+		try (FileJarManager lazyJarManager = new FileJarManager(
+			testJarFile, true))
+		{
+			// then
+			assertEquals(content, lazyJarManager
+				.findEntryByName("path/test.txt").getValue());
+		}
+	}
+
+	@Test
+	public void should_ReadDamagedArchiveWhenCreated() throws Exception
+	{
+		// given
+		try (ZipOutputStream zipOS = new ZipOutputStream(
+			new FileOutputStream(testJarFile)))
+		{
+			zipOS.putNextEntry(new ZipEntry("test.txt"));
+			zipOS.write("content".getBytes());
+		}
+		try (RandomAccessFile file = new RandomAccessFile(testJarFile,
+			"rw"))
+		{
+			// reserved block type of the deflated content
+			file.seek(30 + "test.txt".length());
+			file.write(0xFF);
+		}
+		new FileJarManager(testJarFile, true).close();
+
+		// when
+		try
+		{
+			new FileJarManager(testJarFile);
+			fail("Damaged archive was read");
+		}
+		catch (IOException ex)
+		{
+			// then expected
+		}
+	}
+
+	@Test
+	public void should_SaveReopenedArchive() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addClass(BytesWrapper.class);
+		jarManager.save();
+		JarManager reopenedJarManager = new FileJarManager(testJarFile);
+
+		// when
+		reopenedJarManager.save();
+
+		// then
+		try (JarFile jarArchive = new JarFile(testJarFile))
+		{
+			assertNotNull(jarArchive.getManifest().getMainAttributes()
+				.getValue("Bundle-SymbolicName"));
+			assertNotNull(jarArchive.getEntry(
+				"goobar/cextractor/jarmanager/BytesWrapper.class"));
+		}
+	}
+
+	@Test
+	public void should_SaveVariantOfArchiveOpenedLazily() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("path/base.txt"),
+			new BytesWrapper("base".getBytes()));
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.save();
+		File variantJarFile = new File(tempFolder.newFolder("variant"),
+			testJarFile.getName());
+
+		// when
+		try (FileJarManager lazyJarManager = new FileJarManager(
+			testJarFile, true);
+			FileJarManager variant = lazyJarManager
+				.snapshot(variantJarFile))
+		{
+			variant.findEntryByName("path/test.txt").getValue()
+				.setBytes("changed".getBytes());
+			variant.save();
+
+			// then
+			assertEquals("content", IOUtils.toString(lazyJarManager
+				.openEntryStream("path/test.txt")));
+		}
+		try (JarFile jarFile = new JarFile(variantJarFile))
+		{
+			assertEquals("base", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/base.txt"))));
+			assertEquals("changed", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/test.txt"))));
+		}
+	}
+
+	@Test
+	public void should_SaveVariantAfterArchiveOpenedLazilyIsSaved()
+		throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("a.txt"),
+			new BytesWrapper("a".getBytes()));
+		jarManager.addContent(new JarEntry("b.txt"),
+			new BytesWrapper("b".getBytes()));
+		jarManager.save();
+		File variantJarFile = new File(tempFolder.newFolder("variant"),
+			testJarFile.getName());
+
+		// when
+		try (FileJarManager lazyJarManager = new FileJarManager(
+			testJarFile, true);
+			FileJarManager variant = lazyJarManager
+				.snapshot(variantJarFile))
+		{
+			lazyJarManager.removeEntry("a.txt");
+			lazyJarManager.addContent(new JarEntry("a.txt"),
+				new BytesWrapper("NEW!".getBytes()));
+			lazyJarManager.removeEntry("b.txt");
+			lazyJarManager.save();
+			variant.save();
+		}
+
+		// then
+		try (JarFile jarFile = new JarFile(variantJarFile))
+		{
+			assertEquals("a", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("a.txt"))));
+			assertEquals("b", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("b.txt"))));
+		}
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertEquals("NEW!", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("a.txt"))));
+			assertNull(jarFile.getEntry("b.txt"));
+		}
+	}
+
+	@Test
+	public void should_NotChangeArchive_When_SnapshotEntryIsChanged()
+		throws Exception
+	{
+		// given
+		VirtualJarManager jarManager = new VirtualJarManager();
+		JarEntry entry = new JarEntry("test.txt");
+		entry.setTime(1000);
+		jarManager.addContent(entry,
+			new BytesWrapper("content".getBytes()));
+		VirtualJarManager snapshot = jarManager.snapshot();
+
+		// when
+		Entry<JarEntry, BytesWrapper> snapshotEntry = snapshot
+			.findEntryByName("test.txt");
+		snapshotEntry.getKey().setTime(2000);
+		snapshotEntry.getValue().setBytes("changed".getBytes());
+
+		// then
+		Entry<JarEntry, BytesWrapper> archiveEntry = jarManager
+			.findEntryByName("test.txt");
+		assertEquals(1000, archiveEntry.getKey().getTime());
+		assertEquals("content",
+			new String(archiveEntry.getValue().getBytes()));
+		assertEquals("changed", new String(snapshot
+			.findEntryByName("test.txt").getValue().getBytes()));
+		snapshot.removeEntry(entry);
+		assertNull(snapshot.findEntryByName("test.txt"));
+		assertNotNull(jarManager.findEntryByName("test.txt"));
+	}
+
+	@Test
+	public void should_ReadSnapshotContent_When_ArchiveIsClosed()
+		throws Exception
+	{
+		// given
+		byte[] streamContent = new byte[2 * 1024 * 1024];
+		Arrays.fill(streamContent, (byte) 1);
+		VirtualJarManager jarManager = new VirtualJarManager();
+		jarManager.setMemoryBudget(64 * 1024);
+		for (int i = 0; i < 8; i++)
+		{
+			byte[] content = new byte[16 * 1024];
+			Arrays.fill(content, (byte) i);
+			jarManager.addContent(new JarEntry("entry" + i),
+				new BytesWrapper(content));
+		}
+		jarManager.addStreamContent(new JarEntry("stream.bin"),
+			new ByteArrayInputStream(streamContent));
+		File bufferFile = ((FileRegionBytesWrapper) jarManager
+			.findEntryByName("stream.bin").getValue()).getFile();
+		VirtualJarManager snapshot = jarManager.snapshot();
+
+		// when
+		jarManager.close();
+
+		// then
+		for (int i = 0; i < 8; i++)
+		{
+			byte[] content = new byte[16 * 1024];
+			Arrays.fill(content, (byte) i);
+			assertTrue(Arrays.equals(content, snapshot
+				.findEntryByName("entry" + i).getValue()
+				.getBytes()));
+		}
+		assertTrue(Arrays.equals(streamContent, IOUtils.toByteArray(
+			snapshot.openEntryStream("stream.bin"))));
+		snapshot.close();
+		assertFalse(bufferFile.exists());
+	}
+
+	@Test
+	public void should_ReadArchiveOpenedLazily_When_SavedAndSnapshotIsClosed()
+		throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("a.txt"),
+			new BytesWrapper("a".getBytes()));
+		jarManager.addContent(new JarEntry("b.txt"),
+			new BytesWrapper("b".getBytes()));
+		jarManager.save();
+		File variantJarFile = new File(tempFolder.newFolder("variant"),
+			testJarFile.getName());
+
+		// when
+		try (FileJarManager lazyJarManager = new FileJarManager(
+			testJarFile, true))
+		{
+			FileJarManager variant = lazyJarManager
+				.snapshot(variantJarFile);
+			lazyJarManager.removeEntry("a.txt");
+			lazyJarManager.save();
+			variant.close();
+
+			// then
+			assertEquals("b", IOUtils.toString(lazyJarManager
+				.openEntryStream("b.txt")));
+			assertNull(lazyJarManager.findEntryByName("a.txt"));
+		}
+	}
+
+	@Test
+	public void should_AppendNewEntriesWhenSavingIncrementally()
+		throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.save();
+		try (FileJarManager incrementalJarManager = new FileJarManager(
+			testJarFile, true))
+		{
+			incrementalJarManager.setIncrementalSave(true);
+			// the generated manifest changes, so archive is rewritten
+			incrementalJarManager.addContent(new JarEntry("first.txt"),
+				new BytesWrapper("first".getBytes()));
+			incrementalJarManager.save();
+			byte[] savedArchive = Files
+				.readAllBytes(testJarFile.toPath());
+			int savedDataLength;
+			try (ArchiveSource source = ArchiveSource.open(testJarFile))
+			{
+				savedDataLength = (int) source.centralDirectoryOffset();
+			}
+
+			// when
+			incrementalJarManager.addContent(
+				new JarEntry("second.txt"),
+				new BytesWrapper("second".getBytes()));
+			incrementalJarManager.save();
+
+			// then
+			byte[] appendedArchive = Files
+				.readAllBytes(testJarFile.toPath());
+			// entries data of the saved archive is kept as it is
+			assertTrue(Arrays.equals(
+				Arrays.copyOf(savedArchive, savedDataLength),
+				Arrays.copyOf(appendedArchive, savedDataLength)));
+		}
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertNotNull(jarFile.getManifest());
+			assertEquals("second", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("second.txt"))));
+		}
+		List<String> entryNames = new ArrayList<String>();
+		for (JarEntry entry : new FileJarManager(testJarFile).entries())
+		{
+			entryNames.add(entry.getName());
+		}
+		assertEquals(Arrays.asList(JarFile.MANIFEST_NAME,
+			"path/test.txt", "first.txt", "second.txt"), entryNames);
+	}
+
+	@Test
+	public void should_SkipSaveWhenNothingChanged() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.save();
+		assertTrue(testJarFile.setLastModified(0));
+
+		// when
+		jarManager.save();
+		new FileJarManager(testJarFile).save();
+
+		// then
+		assertEquals(0, testJarFile.lastModified());
+		jarManager.findEntryByName("path/test.txt").getValue()
+			.setBytes("changed".getBytes());
+		jarManager.save();
+		assertTrue(testJarFile.lastModified() != 0);
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertEquals("changed", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/test.txt"))));
+		}
+	}
+
+	@Test
+	public void should_SaveManifestChangedDirectly() throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.save();
+
+		// when
+		jarManager.manifest().getMainAttributes()
+			.putValue("Implementation-Title", "changed");
+		jarManager.save();
+
+		// then
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertEquals("changed", jarFile.getManifest()
+				.getMainAttributes().getValue("Implementation-Title"));
+		}
+	}
+
+	@Test
+	public void should_SaveArchiveOpenedLazily() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		BytesWrapper content = new BytesWrapper("content".getBytes());
+		jarManager.addContent(new JarEntry("path/test.txt"), content);
+		jarManager.save();
+		try (FileJarManager lazyJarManager = new FileJarManager(
+			testJarFile, true))
+		{
+			lazyJarManager.generateManifestFlag(false);
+
+			// when
+			lazyJarManager.addContent(new JarEntry("other.txt"),
+				content);
+			lazyJarManager.save();
+
+			// then
+			assertEquals(content, lazyJarManager
+				.findEntryByName("path/test.txt").getValue());
+		}
+		FileJarManager newJarManagerAfterSave = new FileJarManager(
+			testJarFile);
+		assertEquals(content, newJarManagerAfterSave
+			.findEntryByName("path/test.txt").getValue());
+		assertEquals(content, newJarManagerAfterSave
+			.findEntryByName("other.txt").getValue());
+	}
+
+	@Test
+	public void should_SaveContentKeptOutsideOfHeap() throws Exception
+	{
+		// given
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+		{
+			text.append("line ").append(i).append('\n');
+		}
+		byte[] content = text.toString().getBytes();
+		Files.write(testFile.toPath(), content);
+		JarEntry storedEntry = new JarEntry("stored.txt");
+		storedEntry.setMethod(ZipEntry.STORED);
+		ByteBuffer directBuffer = ByteBuffer.allocateDirect(content.length);
+		directBuffer.put(content).flip();
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addContent(new JarEntry("region.txt"),
+			new FileRegionBytesWrapper(testFile, 5, 100));
+		jarManager.addContent(new JarEntry("file.txt"),
+			new FileRegionBytesWrapper(testFile));
+		jarManager.addContent(storedEntry,
+			ByteBufferBytesWrapper.map(testFile));
+		jarManager.addContent(new JarEntry("direct.txt"),
+			new ByteBufferBytesWrapper(directBuffer));
+
+		// when
+		jarManager.save();
+
+		// then
+		try (JarFile jarFile = new JarFile(testJarFile))
+		{
+			assertTrue(Arrays.equals(
+				Arrays.copyOfRange(content, 5, 105),
+				IOUtils.toByteArray(jarFile.getInputStream(
+					jarFile.getEntry("region.txt")))));
+			for (String name : Arrays.asList("file.txt",
+				"stored.txt", "direct.txt"))
+			{
+				assertTrue(Arrays.equals(content,
+					IOUtils.toByteArray(jarFile
+						.getInputStream(jarFile
+							.getEntry(name)))));
+			}
+			assertEquals(ZipEntry.STORED,
+				jarFile.getEntry("stored.txt").getMethod());
+		}
+		FileJarManager reopened = new FileJarManager(testJarFile);
+		assertTrue(Arrays.equals(content, reopened
+			.findEntryByName("file.txt").getValue().getBytes()));
+	}
+
 	@Test
 	public void should_RemoveEntry() throws Exception
 	{
@@ -227,6 +1318,78 @@ public class FileJarManagerTest
 		assertNull(jarManager.findEntryByName(entry.getName()));
 	}
 
+	@Test
+	public void should_RemoveEntryByName() throws Exception
+	{
+		// given
+		JarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.addFile(testFile, new JarEntry("path/test.txt"));
+
+		// when
+		jarManager.removeEntry("path/test.txt");
+
+		// then
+		assertNull(jarManager.findEntryByName("path/test.txt"));
+		assertTrue(jarManager.entries().isEmpty());
+	}
+
+	@Test
+	public void should_FindAndRemoveSubtree() throws Exception
+	{
+		for (JarManager jarManager : Arrays.asList(
+			new FileJarManager(testJarFile), new ConcurrentJarManager()))
+		{
+			// given
+			for (String name : Arrays.asList("com/", "com/foo/",
+				"com/foo/internal/", "com/foo/internal/B.class",
+				"com/foo/internal2.txt", "com/foo/impl/C.class",
+				"com/foo/A.class", "com/foobar.txt"))
+			{
+				if (name.endsWith("/"))
+				{
+					jarManager.addEntry(new JarEntry(name));
+				}
+				else
+				{
+					jarManager.addContent(new JarEntry(name),
+						new BytesWrapper(name.getBytes()));
+				}
+			}
+
+			// when
+			List<String> children = new ArrayList<String>();
+			for (Entry<JarEntry, BytesWrapper> entry : jarManager
+				.findChildren("com/foo"))
+			{
+				children.add(entry.getKey().getName());
+			}
+			int subtreeSize = jarManager.findSubtree("com/foo/").size();
+			jarManager.removeSubtree("com/foo/internal/");
+
+			// then
+			assertEquals(Arrays.asList("com/foo/A.class",
+				"com/foo/internal/", "com/foo/internal2.txt"),
+				children);
+			assertEquals(6, subtreeSize);
+			assertNull(jarManager.findEntryByName("com/foo/internal/"));
+			assertEquals(6, jarManager.entries().size());
+			assertEquals(1, jarManager.findChildren("").size());
+		}
+	}
+
+	@Test(expected = EntryDuplicatedException.class)
+	public void should_ThrowException_When_ContentEntryIsDuplicated()
+		throws Exception
+	{
+		// given
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		BytesWrapper content = new BytesWrapper("content".getBytes());
+
+		// when
+		jarManager.addContent(new JarEntry("entry.txt"), content);
+		jarManager.addContent(new JarEntry("entry.txt"), content);
+	}
+
 	@Test(expected = EntryDuplicatedException.class)
 	public void should_ThrowException_When_EntryIsDuplicated()
 		throws Exception
@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class JarMergerTest
+{
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void should_MergeArchives() throws Exception
+	{
+		// given
+		String service = "META-INF/services/goobar.Service";
+		File firstJarFile = tempFolder.newFile("first.jar");
+		File secondJarFile = tempFolder.newFile("second.jar");
+		File mergedJarFile = new File(tempFolder.getRoot(), "merged.jar");
+		for (File jarFile : Arrays.asList(firstJarFile, secondJarFile))
+		{
+			try (JarOutputStream jarOS = new JarOutputStream(
+				new FileOutputStream(jarFile), new Manifest()))
+			{
+				jarOS.putNextEntry(new JarEntry("path/common.txt"));
+				jarOS.write(jarFile.getName().getBytes());
+				jarOS.putNextEntry(new JarEntry(
+					"path/" + jarFile.getName() + ".txt"));
+				jarOS.write("content".getBytes());
+				jarOS.putNextEntry(new JarEntry(service));
+				jarOS.write(jarFile.getName().getBytes());
+			}
+		}
+		JarMerger merger = new JarMerger();
+		merger.addSource(firstJarFile);
+		merger.addSource(secondJarFile);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		// when
+		try
+		{
+			merger.setDuplicateEntryPolicy(DuplicateEntryPolicy.FAIL);
+			try
+			{
+				merger.merge(mergedJarFile);
+				fail("Duplicated entry was merged");
+			}
+			catch (EntryDuplicatedException ex)
+			{
+				// expected
+			}
+			merger.setExecutor(executor);
+			merger.setDuplicateEntryPolicy(
+				DuplicateEntryPolicy.MERGE_SERVICES);
+			merger.merge(mergedJarFile);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// then
+		try (JarFile jarFile = new JarFile(mergedJarFile))
+		{
+			assertNotNull(jarFile.getManifest());
+			assertEquals("first.jar", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/common.txt"))));
+			assertEquals("content", IOUtils.toString(jarFile
+				.getInputStream(jarFile.getEntry("path/second.jar.txt"))));
+			assertEquals("first.jar\nsecond.jar\n", IOUtils.toString(
+				jarFile.getInputStream(jarFile.getEntry(service))));
+		}
+	}
+
+	@Test
+	public void should_WriteManifestFirstWhenMergingArchives()
+		throws Exception
+	{
+		// given
+		File firstJarFile = tempFolder.newFile("first.jar");
+		File secondJarFile = tempFolder.newFile("second.jar");
+		File mergedJarFile = new File(tempFolder.getRoot(), "merged.jar");
+		try (JarOutputStream jarOS = new JarOutputStream(
+			new FileOutputStream(firstJarFile)))
+		{
+			jarOS.putNextEntry(new JarEntry("path/first.txt"));
+			jarOS.write("first".getBytes());
+		}
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Created-By", "second");
+		try (JarOutputStream jarOS = new JarOutputStream(
+			new FileOutputStream(secondJarFile), manifest))
+		{
+			jarOS.putNextEntry(new JarEntry("path/second.txt"));
+			jarOS.write("second".getBytes());
+		}
+		JarMerger merger = new JarMerger();
+		merger.addSource(firstJarFile);
+		merger.addSource(secondJarFile);
+
+		// when
+		merger.merge(mergedJarFile);
+
+		// then
+		try (JarInputStream jarIS = new JarInputStream(
+			new FileInputStream(mergedJarFile)))
+		{
+			assertNotNull(jarIS.getManifest());
+			assertEquals("second", jarIS.getManifest()
+				.getMainAttributes().getValue("Created-By"));
+			List<String> entryNames = new ArrayList<String>();
+			for (JarEntry entry = jarIS.getNextJarEntry(); entry != null; entry = jarIS
+				.getNextJarEntry())
+			{
+				entryNames.add(entry.getName());
+			}
+			assertEquals(Arrays.asList("path/first.txt",
+				"path/second.txt"), entryNames);
+		}
+		try (ZipInputStream zipIS = new ZipInputStream(
+			new FileInputStream(mergedJarFile)))
+		{
+			assertEquals("META-INF/", zipIS.getNextEntry().getName());
+			assertEquals(JarFile.MANIFEST_NAME,
+				zipIS.getNextEntry().getName());
+		}
+	}
+
+	@Test
+	public void should_MergeArchivesWithoutManifest() throws Exception
+	{
+		// given
+		JarMerger merger = new JarMerger();
+		List<String> expectedNames = new ArrayList<String>();
+		for (int i = 0; i < 20; i++)
+		{
+			File jarFile = tempFolder.newFile("source" + i + ".jar");
+			try (JarOutputStream jarOS = new JarOutputStream(
+				new FileOutputStream(jarFile)))
+			{
+				jarOS.putNextEntry(new JarEntry("path/" + i + ".txt"));
+				jarOS.write(String.valueOf(i).getBytes());
+			}
+			merger.addSource(jarFile);
+			expectedNames.add("path/" + i + ".txt");
+		}
+		File mergedJarFile = new File(tempFolder.getRoot(), "merged.jar");
+
+		// when
+		merger.merge(mergedJarFile);
+
+		// then
+		try (JarInputStream jarIS = new JarInputStream(
+			new FileInputStream(mergedJarFile)))
+		{
+			assertNull(jarIS.getManifest());
+			List<String> entryNames = new ArrayList<String>();
+			for (JarEntry entry = jarIS.getNextJarEntry(); entry != null; entry = jarIS
+				.getNextJarEntry())
+			{
+				entryNames.add(entry.getName());
+				assertEquals(entry.getName(), "path/"
+					+ IOUtils.toString(jarIS) + ".txt");
+			}
+			assertEquals(expectedNames, entryNames);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class ManifestCacheTest
+{
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File testJarFile;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		testJarFile = new File(tempFolder.getRoot(), "test.jar");
+	}
+
+	@Test
+	public void should_ReuseCachedManifest() throws Exception
+	{
+		// given
+		File cacheDir = new File(tempFolder.getRoot(), "manifests");
+		File rebuiltJarFile = new File(tempFolder.newFolder("rebuilt"),
+			testJarFile.getName());
+		FileJarManager jarManager = new FileJarManager(testJarFile);
+		jarManager.setManifestCache(new ManifestCache(10, cacheDir));
+		jarManager.addClass(BytesWrapper.class);
+		jarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		jarManager.save();
+		Thread.sleep(10);
+
+		// when
+		FileJarManager rebuiltJarManager = new FileJarManager(
+			rebuiltJarFile);
+		rebuiltJarManager.setManifestCache(new ManifestCache(10, cacheDir));
+		rebuiltJarManager.addClass(BytesWrapper.class);
+		rebuiltJarManager.addContent(new JarEntry("path/test.txt"),
+			new BytesWrapper("content".getBytes()));
+		rebuiltJarManager.save();
+
+		// then
+		assertEquals(1, cacheDir.list().length);
+		try (JarFile jarFile = new JarFile(testJarFile);
+			JarFile rebuiltJar = new JarFile(rebuiltJarFile))
+		{
+			// the manifest (including the time bnd calculated it) is
+			// taken from the cache
+			assertEquals(jarFile.getManifest(),
+				rebuiltJar.getManifest());
+		}
+	}
+}
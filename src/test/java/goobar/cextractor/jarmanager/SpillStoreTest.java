@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class SpillStoreTest
+{
+
+	@Test
+	public void should_CompactSpillFile() throws Exception
+	{
+		// given
+		Random random = new Random(0);
+		byte[] firstContent = new byte[64 * 1024];
+		byte[] secondContent = new byte[64 * 1024];
+		BytesWrapper first = new BytesWrapper(firstContent);
+		BytesWrapper second = new BytesWrapper(secondContent);
+		SpillStore store = new SpillStore(100 * 1024);
+		store.attach(first);
+		store.attach(second);
+
+		// when
+		try
+		{
+			for (int i = 0; i < 64; i++)
+			{
+				firstContent = new byte[64 * 1024];
+				random.nextBytes(firstContent);
+				first.setBytes(firstContent);
+				secondContent = new byte[64 * 1024];
+				random.nextBytes(secondContent);
+				second.setBytes(secondContent);
+			}
+
+			// then
+			assertTrue(store.getSpillFileLength() < 2
+				* SpillStore.COMPACTION_THRESHOLD);
+			assertTrue(Arrays.equals(firstContent, first.getBytes()));
+			assertTrue(Arrays.equals(secondContent, second.getBytes()));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+}
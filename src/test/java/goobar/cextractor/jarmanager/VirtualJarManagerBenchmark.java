@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package goobar.cextractor.jarmanager;
+
+import java.util.jar.JarEntry;
+
+/**
+ * Simple benchmark of {@link VirtualJarManager} entry operations. It is not a
+ * unit test (it isn't run by the build); run its main method to see how add,
+ * lookup and remove scale with the number of entries. Time per entry should
+ * stay roughly constant from 1k to 500k entries.
+ *
+ * @author goobar
+ */
+@SuppressWarnings("javadoc")
+public class VirtualJarManagerBenchmark
+{
+
+	private static final int[] SIZES = { 1000, 10000, 100000, 500000 };
+
+	public static void main(String[] args) throws Exception
+	{
+		// warm up
+		run(SIZES[1]);
+		System.out.println(String.format("%10s %12s %12s %12s",
+			"entries", "add ns/op", "find ns/op", "remove ns/op"));
+		for (int size : SIZES)
+		{
+			long[] times = run(size);
+			System.out.println(String.format(
+				"%10d %12d %12d %12d", size,
+				times[0] / size, times[1] / size,
+				times[2] / size));
+		}
+	}
+
+	private static String entryName(int i)
+	{
+		return "dir" + i % 100 + "/entry" + i + ".txt";
+	}
+
+	private static long[] run(int size) throws Exception
+	{
+		VirtualJarManager jarManager = new VirtualJarManager();
+		BytesWrapper content = new BytesWrapper(new byte[0]);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < size; i++)
+		{
+			jarManager.addContent(new JarEntry(entryName(i)),
+				content);
+		}
+		long add = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < size; i++)
+		{
+			if (jarManager.findEntryByName(entryName(i)) == null)
+			{
+				throw new IllegalStateException(
+					"Missing entry " + entryName(i));
+			}
+		}
+		long find = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < size; i++)
+		{
+			jarManager.removeEntry(entryName(i));
+		}
+		long remove = System.nanoTime() - start;
+
+		return new long[] { add, find, remove };
+	}
+}